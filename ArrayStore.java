@@ -17,10 +17,23 @@
 //   thru storageOffset+nbytes-1 into 
 //   buf[bufOffset] thru buf[bufOffset+nbytes-1].
 //
+// as.write(buf, storageOffset) and as.read(buf, storageOffset)
+//   Same as above, but the data is the remaining bytes of the ByteBuffer
+//   <buf>, whose position is advanced past them.  Each block's share of
+//   the buffer is passed down as a slice, so no copies are made here.
+//
+// Transfers that span several blocks are handed to the BlockStore as one
+// vectored readBlocks/writeBlocks call.
+//
 // The read and write methods throw DataIntegrityException if
 // there was a data integrity problem in the underlying DataStore.
 //
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+
 public class ArrayStore {
 	private int        blockSize;
 	private BlockStore bs;
@@ -33,6 +46,20 @@ public class ArrayStore {
 	public void write(byte[] buf, int bufOffset, int storageOffset, int nbytes) 
 		throws DataIntegrityException {
 
+		bs.writeBlocks(ranges(buf, bufOffset, storageOffset, nbytes));
+	}
+
+	public void read(byte[] buf, int bufOffset, int storageOffset, int nbytes) 
+		throws DataIntegrityException {
+
+		bs.readBlocks(ranges(buf, bufOffset, storageOffset, nbytes));
+	}
+
+	// Split a transfer into its per-block pieces.
+	private List<BlockRange> ranges(byte[] buf, int bufOffset, 
+		int storageOffset, int nbytes) {
+
+		List<BlockRange> ret = new ArrayList<BlockRange>();
 		while(nbytes > 0){
 			int blockNum = storageOffset / blockSize;
 			int blockOffset = storageOffset % blockSize;
@@ -40,27 +67,42 @@ public class ArrayStore {
 			if(nbytes > (blockSize-blockOffset)){
 				nbytesThisTime = blockSize-blockOffset;
 			}
-			bs.writeBlock(blockNum, buf, bufOffset, blockOffset, nbytesThisTime);
+			ret.add(new BlockRange(blockNum, buf, bufOffset, blockOffset, 
+				nbytesThisTime));
 			nbytes -= nbytesThisTime;
 			storageOffset += nbytesThisTime;
 			bufOffset += nbytesThisTime;
 		}
+		return ret;
 	}
 
-	public void read(byte[] buf, int bufOffset, int storageOffset, int nbytes) 
+	public void write(ByteBuffer buf, int storageOffset) 
 		throws DataIntegrityException {
-			
-		while(nbytes > 0){
+
+		while(buf.hasRemaining()){
 			int blockNum = storageOffset / blockSize;
 			int blockOffset = storageOffset % blockSize;
-			int nbytesThisTime = nbytes;
-			if(nbytes > (blockSize-blockOffset)){
-				nbytesThisTime = blockSize-blockOffset;
-			}
-			bs.readBlock(blockNum, buf, bufOffset, blockOffset, nbytesThisTime);
-			nbytes -= nbytesThisTime;
+			int nbytesThisTime = Math.min(buf.remaining(), blockSize-blockOffset);
+			ByteBuffer chunk = buf.duplicate();
+			chunk.limit(chunk.position()+nbytesThisTime);
+			bs.writeBlock(blockNum, chunk, blockOffset);
+			buf.position(buf.position()+nbytesThisTime);
+			storageOffset += nbytesThisTime;
+		}
+	}
+
+	public void read(ByteBuffer buf, int storageOffset) 
+		throws DataIntegrityException {
+
+		while(buf.hasRemaining()){
+			int blockNum = storageOffset / blockSize;
+			int blockOffset = storageOffset % blockSize;
+			int nbytesThisTime = Math.min(buf.remaining(), blockSize-blockOffset);
+			ByteBuffer chunk = buf.duplicate();
+			chunk.limit(chunk.position()+nbytesThisTime);
+			bs.readBlock(blockNum, chunk, blockOffset);
+			buf.position(buf.position()+nbytesThisTime);
 			storageOffset += nbytesThisTime;
-			bufOffset += nbytesThisTime;
 		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,60 @@
+// Measures how many bytes BlockStoreAuthEnc allocates per single-block read
+// and write once it has warmed up, using the per-thread allocation counter
+// of the JVM.  The device underneath is a MappedBlockDevice, which doesn't
+// allocate per access, so the numbers are those of the crypto and Merkle
+// tree layer itself.
+//
+// java BenchAllocation [operations]
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+
+public class BenchAllocation {
+	private static final int Blocks = 1024;
+	private static final int DefaultOperations = 20000;
+
+	public static void main(String[] args) throws Exception {
+		int operations = (args.length > 0) ? Integer.parseInt(args[0]) : DefaultOperations;
+		com.sun.management.ThreadMXBean mx = 
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long self = Thread.currentThread().getId();
+
+		BlockStore dev = new MappedBlockDevice("benchDevice");
+		dev.format();
+		PRGen prg = new PRGen(new byte[PRGen.KEY_SIZE_BYTES]);
+		BlockStoreAuthEnc bs = new BlockStoreAuthEnc(dev, prg);
+		byte[] buf = new byte[bs.blockSize()];
+		for(int bn=0; bn<Blocks; ++bn){
+			bs.writeBlock(bn, buf, 0, 0, buf.length);
+		}
+
+		System.out.println("operation  bytes/op  us/op");
+		Random rand = new Random(0);
+		for(int pass=0; pass<2; ++pass){
+			// the first pass is warm-up (JIT, thread-local buffers, caches)
+			long before = mx.getThreadAllocatedBytes(self);
+			long start = System.nanoTime();
+			for(int i=0; i<operations; ++i){
+				bs.readBlock(rand.nextInt(Blocks), buf, 0, 0, buf.length);
+			}
+			long readBytes = mx.getThreadAllocatedBytes(self) - before;
+			long readNanos = System.nanoTime() - start;
+
+			before = mx.getThreadAllocatedBytes(self);
+			start = System.nanoTime();
+			for(int i=0; i<operations; ++i){
+				bs.writeBlock(rand.nextInt(Blocks), buf, 0, 0, buf.length);
+			}
+			long writeBytes = mx.getThreadAllocatedBytes(self) - before;
+			long writeNanos = System.nanoTime() - start;
+
+			if(pass == 1){
+				System.out.println(String.format("read       %8d  %5.1f", 
+					readBytes / operations, readNanos / 1000.0 / operations));
+				System.out.println(String.format("write      %8d  %5.1f", 
+					writeBytes / operations, writeNanos / 1000.0 / operations));
+			}
+		}
+	}
+}
@@ -0,0 +1,88 @@
+// Measures how BlockStoreAuthEnc throughput scales with the number of
+// threads using it at once.  The store is filled, and then each thread
+// count runs a read-only workload and a mixed workload (one write in
+// five) at random block numbers for a fixed time.  Operations per second
+// across all threads are reported, with the speedup over one thread.
+//
+// java BenchAuthEncConcurrency [nblocks] [maxThreads]
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+public class BenchAuthEncConcurrency {
+	private static final int  DefaultBlocks = 4096;
+	private static final long RunNanos = 2000000000L;
+
+	public static void main(String[] args) throws Exception {
+		int nblocks = (args.length > 0) ? Integer.parseInt(args[0]) : DefaultBlocks;
+		int maxThreads = (args.length > 1) ? Integer.parseInt(args[1]) :
+			Runtime.getRuntime().availableProcessors();
+
+		BlockStore dev = new MappedBlockDevice("benchDevice");
+		dev.format();
+		PRGen prg = new PRGen(new byte[PRGen.KEY_SIZE_BYTES]);
+		BlockStoreAuthEnc bs = new BlockStoreAuthEnc(dev, prg);
+		bs.format();
+		bs.setWriteVerification(BlockStoreAuthEnc.VERIFY_OFF);
+		byte[] buf = new byte[bs.blockSize()];
+		for(int bn=0; bn<nblocks; ++bn){
+			bs.writeBlock(bn, buf, 0, 0, buf.length);
+		}
+
+		System.out.println("workload  threads  ops/s     speedup");
+		for(int writeEvery : new int[] { 0, 5 }){
+			double base = 0;
+			for(int threads=1; threads<=maxThreads; threads*=2){
+				double rate = run(bs, nblocks, threads, writeEvery);
+				if(threads == 1){
+					base = rate;
+				}
+				System.out.println(String.format("%-8s  %7d  %8.0f  %7.2f",
+					(writeEvery == 0) ? "read" : "mixed", threads, rate, rate/base));
+			}
+		}
+	}
+
+	// Run <threads> threads for RunNanos, each doing a write for one
+	// operation in <writeEvery> (never, if 0) and reads otherwise.
+	private static double run(final BlockStoreAuthEnc bs, final int nblocks,
+		int threads, final int writeEvery) throws InterruptedException {
+
+		final AtomicLong ops = new AtomicLong();
+		final long deadline = System.nanoTime() + RunNanos;
+		Thread[] workers = new Thread[threads];
+		for(int t=0; t<threads; ++t){
+			final int seed = t;
+			workers[t] = new Thread() {
+				public void run() {
+					Random rand = new Random(seed);
+					byte[] buf = new byte[bs.blockSize()];
+					long done = 0;
+					try {
+						while(System.nanoTime() < deadline){
+							int bn = rand.nextInt(nblocks);
+							if(writeEvery > 0 && done % writeEvery == 0){
+								bs.writeBlock(bn, buf, 0, 0, buf.length);
+							}else{
+								bs.readBlock(bn, buf, 0, 0, buf.length);
+							}
+							++done;
+						}
+					} catch(DataIntegrityException x) {
+						x.printStackTrace();
+					}
+					ops.addAndGet(done);
+				}
+			};
+		}
+		long start = System.nanoTime();
+		for(Thread w : workers){
+			w.start();
+		}
+		for(Thread w : workers){
+			w.join();
+		}
+		return ops.get() * 1e9 / (System.nanoTime() - start);
+	}
+}
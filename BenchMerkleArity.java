@@ -0,0 +1,105 @@
+// Measures how the shape of the Merkle tree in BlockStoreAuthEnc affects
+// single-block reads and writes: for each arity, in both the classic
+// layout and the hash-only layout, the store is formatted, filled, and
+// then read and written at random block numbers.  Latency and the number
+// of device bytes read per operation are reported.  The verified-hash
+// cache is turned off so that every access walks its whole path.
+//
+// java BenchMerkleArity [nblocks]
+
+import java.util.Random;
+
+
+public class BenchMerkleArity {
+	private static final int[] Arities = { 2, 4, 8, 16, 32, 64 };
+	private static final int   DefaultBlocks = 4096;
+	private static final int   Operations = 2000;
+
+	// Passes everything through, counting the bytes read from blocks.
+	private static class CountingStore implements BlockStore {
+		private BlockStore wrapped;
+		long bytesRead = 0;
+
+		CountingStore(BlockStore ws) {    wrapped = ws;    }
+
+		public void format() throws DataIntegrityException {    wrapped.format();    }
+		public int blockSize() {    return wrapped.blockSize();    }
+		public int superBlockSize() {    return wrapped.superBlockSize();    }
+
+		public void readSuperBlock(byte[] buf, int bufOffset, int blockOffset, 
+			int nbytes) throws DataIntegrityException {
+			wrapped.readSuperBlock(buf, bufOffset, blockOffset, nbytes);
+		}
+
+		public void writeSuperBlock(byte[] buf, int bufOffset, int blockOffset, 
+			int nbytes) throws DataIntegrityException {
+			wrapped.writeSuperBlock(buf, bufOffset, blockOffset, nbytes);
+		}
+
+		public void readBlock(int blockNum, byte[] buf, int bufOffset, 
+			int blockOffset, int nbytes) throws DataIntegrityException {
+			bytesRead += nbytes;
+			wrapped.readBlock(blockNum, buf, bufOffset, blockOffset, nbytes);
+		}
+
+		public void writeBlock(int blockNum, byte[] buf, int bufOffset, 
+			int blockOffset, int nbytes) throws DataIntegrityException {
+			wrapped.writeBlock(blockNum, buf, bufOffset, blockOffset, nbytes);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int nblocks = (args.length > 0) ? Integer.parseInt(args[0]) : DefaultBlocks;
+
+		CountingStore dev = new CountingStore(new MappedBlockDevice("benchDevice"));
+		dev.format();
+		PRGen prg = new PRGen(new byte[PRGen.KEY_SIZE_BYTES]);
+		BlockStoreAuthEnc bs = new BlockStoreAuthEnc(dev, prg);
+		bs.setHashCacheNodes(0);
+		bs.setWriteVerification(BlockStoreAuthEnc.VERIFY_OFF);
+
+		System.out.println("layout     arity  depth  blockSize  write(us)  read(us)  read(bytes)");
+		for(boolean hashOnly : new boolean[] { false, true }){
+			for(int arity : Arities){
+				bs.format(arity, hashOnly);
+				byte[] buf = new byte[bs.blockSize()];
+				for(int bn=0; bn<nblocks; ++bn){
+					bs.writeBlock(bn, buf, 0, 0, buf.length);
+				}
+
+				Random rand = new Random(arity);
+				long start = System.nanoTime();
+				for(int i=0; i<Operations; ++i){
+					bs.writeBlock(rand.nextInt(nblocks), buf, 0, 0, buf.length);
+				}
+				long writeNanos = System.nanoTime() - start;
+
+				dev.bytesRead = 0;
+				start = System.nanoTime();
+				for(int i=0; i<Operations; ++i){
+					bs.readBlock(rand.nextInt(nblocks), buf, 0, 0, buf.length);
+				}
+				long readNanos = System.nanoTime() - start;
+
+				System.out.println(String.format("%-9s  %5d  %5d  %9d  %9.1f  %8.1f  %11d", 
+					hashOnly ? "hash-only" : "classic", arity, depth(nblocks, arity), 
+					bs.blockSize(), writeNanos / 1000.0 / Operations, 
+					readNanos / 1000.0 / Operations, dev.bytesRead / Operations));
+			}
+		}
+	}
+
+	// Number of levels in a tree of <nblocks> nodes with <arity> children
+	// per node.
+	private static int depth(int nblocks, int arity) {
+		int depth = 0;
+		long levelStart = 0;
+		long levelSize = 1;
+		while(levelStart < nblocks){
+			++depth;
+			levelStart += levelSize;
+			levelSize *= arity;
+		}
+		return depth;
+	}
+}
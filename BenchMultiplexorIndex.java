@@ -0,0 +1,91 @@
+// Compares the two block map formats of BlockStoreMultiplexor: the old
+// pointer chain threaded through the data blocks, and radix index blocks.
+// One substore is filled with nblocks blocks in each format (and a chain
+// store is also upgraded in place), and then single blocks are read at
+// random.  Reported are the average lookup depth, the number of reads of
+// the wrapped store per access (one of which is the data itself) and the
+// latency.  The translation cache is turned off so that every access
+// walks the map.
+//
+// java BenchMultiplexorIndex [nblocks]
+
+import java.util.Random;
+
+
+public class BenchMultiplexorIndex {
+	private static final int DefaultBlocks = 25600;    // 100 MB of 4 KB blocks
+	private static final int Operations = 20000;
+
+	// Passes everything through, counting block reads.
+	private static class CountingStore implements BlockStore {
+		private BlockStore wrapped;
+		long reads = 0;
+
+		CountingStore(BlockStore ws) {    wrapped = ws;    }
+
+		public void format() throws DataIntegrityException {    wrapped.format();    }
+		public int blockSize() {    return wrapped.blockSize();    }
+		public int superBlockSize() {    return wrapped.superBlockSize();    }
+
+		public void readSuperBlock(byte[] buf, int bufOffset, int blockOffset,
+			int nbytes) throws DataIntegrityException {
+			wrapped.readSuperBlock(buf, bufOffset, blockOffset, nbytes);
+		}
+
+		public void writeSuperBlock(byte[] buf, int bufOffset, int blockOffset,
+			int nbytes) throws DataIntegrityException {
+			wrapped.writeSuperBlock(buf, bufOffset, blockOffset, nbytes);
+		}
+
+		public void readBlock(int blockNum, byte[] buf, int bufOffset,
+			int blockOffset, int nbytes) throws DataIntegrityException {
+			++reads;
+			wrapped.readBlock(blockNum, buf, bufOffset, blockOffset, nbytes);
+		}
+
+		public void writeBlock(int blockNum, byte[] buf, int bufOffset,
+			int blockOffset, int nbytes) throws DataIntegrityException {
+			wrapped.writeBlock(blockNum, buf, bufOffset, blockOffset, nbytes);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int nblocks = (args.length > 0) ? Integer.parseInt(args[0]) : DefaultBlocks;
+		CountingStore dev = new CountingStore(new MappedBlockDevice("benchDevice"));
+
+		System.out.println("format    depth(avg)  reads/access  read(us)");
+		for(String format : new String[] { "chain", "radix", "upgraded" }){
+			dev.format();
+			BlockStoreMultiplexor mux =
+				new BlockStoreMultiplexor(dev, format.equals("radix"));
+			mux.setTranslationCacheEntries(0);
+			BlockStore st = mux.newSubStore();
+			byte[] buf = new byte[st.blockSize()];
+			for(int bn=0; bn<nblocks; ++bn){
+				st.writeBlock(bn, buf, 0, 0, buf.length);
+			}
+			if(format.equals("upgraded")){
+				mux.upgradeFormat();
+			}
+
+			Random rand = new Random(nblocks);
+			long depths = 0;
+			for(int i=0; i<Operations; ++i){
+				depths += ((BlockStoreMultiplexor.Multiplexed) st).lookupDepth(
+					rand.nextInt(nblocks));
+			}
+
+			rand = new Random(nblocks);
+			dev.reads = 0;
+			long start = System.nanoTime();
+			for(int i=0; i<Operations; ++i){
+				st.readBlock(rand.nextInt(nblocks), buf, 0, 0, buf.length);
+			}
+			long nanos = System.nanoTime() - start;
+
+			System.out.println(String.format("%-8s  %10.2f  %12.2f  %8.2f",
+				format, (double) depths / Operations,
+				(double) dev.reads / Operations, nanos / 1000.0 / Operations));
+		}
+	}
+}
@@ -0,0 +1,65 @@
+// Shows how BlockStoreMultiplexor lays out BlockStores that grow at the
+// same time.  Several substores are filled in lockstep, one block each in
+// turn, first with extents turned off (every allocation takes the next
+// block of the wrapped store, as before) and then with the default
+// extents.  Reported are the average length of the runs of consecutive
+// wrapped blocks that hold a substore's consecutive blocks, and the time
+// to read each substore front to back.
+//
+// java BenchMultiplexorLocality [nstores] [nblocks]
+
+public class BenchMultiplexorLocality {
+	private static final int DefaultStores = 4;
+	private static final int DefaultBlocks = 4096;
+
+	public static void main(String[] args) throws Exception {
+		int nstores = (args.length > 0) ? Integer.parseInt(args[0]) : DefaultStores;
+		int nblocks = (args.length > 1) ? Integer.parseInt(args[1]) : DefaultBlocks;
+		BlockStore dev = new MappedBlockDevice("benchDevice");
+
+		System.out.println("extents  run length(avg)  sequential read(us/block)");
+		for(boolean extents : new boolean[] { false, true }){
+			dev.format();
+			BlockStoreMultiplexor mux = new BlockStoreMultiplexor(dev, true);
+			if(! extents){
+				mux.setMaxExtent(1);
+			}
+			BlockStore[] st = new BlockStore[nstores];
+			for(int i=0; i<nstores; ++i){
+				st[i] = mux.newSubStore();
+			}
+			byte[] buf = new byte[st[0].blockSize()];
+			for(int bn=0; bn<nblocks; ++bn){
+				for(int i=0; i<nstores; ++i){
+					st[i].writeBlock(bn, buf, 0, 0, buf.length);
+				}
+			}
+
+			long runs = 0;
+			for(int i=0; i<nstores; ++i){
+				BlockStoreMultiplexor.Multiplexed m =
+					(BlockStoreMultiplexor.Multiplexed) st[i];
+				int prev = -2;
+				for(int bn=0; bn<nblocks; ++bn){
+					int phys = m.physicalBlockNum(bn);
+					if(phys != prev+1){
+						++runs;
+					}
+					prev = phys;
+				}
+			}
+
+			long start = System.nanoTime();
+			for(int i=0; i<nstores; ++i){
+				for(int bn=0; bn<nblocks; ++bn){
+					st[i].readBlock(bn, buf, 0, 0, buf.length);
+				}
+			}
+			long nanos = System.nanoTime() - start;
+
+			System.out.println(String.format("%-7s  %15.2f  %25.2f",
+				extents ? "on" : "off", (double) nstores * nblocks / runs,
+				nanos / 1000.0 / nstores / nblocks));
+		}
+	}
+}
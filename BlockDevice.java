@@ -2,6 +2,27 @@
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -10,21 +31,94 @@ import java.io.IOException;
 public class BlockDevice implements BlockStore {
 	private static final int BlockSize = 4096;
 	private static final int SuperBlockSize = 256;
-
-	private byte[] zeroBlockBytes = new byte[BlockSize];
+	private static final int MaxOpenChannels = 64;
+	private static final int DefaultIoThreads = 4;
+	private static final int MaxQueuedRequests = 1024;
+	private static final String TrashPrefix = "OrdinaryBlocks.old-";
+	private static final String StagingName = "OrdinaryBlocks.migrating";
+	private static final int DefaultFanoutLevels = 2;
+	private static final int MaxFanoutLevels = 4;
 
 	private String pathPrefix;
 	private String pathForSB;
 
+	// Blocks that have never been written (or were last written with all
+	// zeroes) have no backing file.  <allocated> records which blocks do
+	// have one, so reads of unwritten space never touch the filesystem.
+	// It is persisted next to the superblock, one bit per block, and is
+	// always a superset of the blocks that really have files: a bit is set
+	// before its file is created and cleared after the file is deleted.
+	private String     pathForMap;
+
+	// Block files are spread over <fanoutLevels> levels of subdirectories,
+	// each level 256-way, named after successive bytes of the block number
+	// (lowest byte first), so no directory gets too big.  Zero levels is the
+	// original flat layout.  The choice is recorded in the Layout file.
+	private String     pathForLayout;
+	private int        fanoutLevels;
+	private BitSet     allocated = new BitSet();
+	private FileChannel mapChannel;
+
+	// In channel mode, files are kept open in a small LRU cache and accessed
+	// with positional reads and writes, instead of being opened, streamed
+	// and closed on every access.
+	private boolean useChannels;
+	private LinkedHashMap<String, FileChannel> openChannels = 
+		new LinkedHashMap<String, FileChannel>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(
+				Map.Entry<String, FileChannel> eldest) {
+				if(size() > MaxOpenChannels){
+					closeQuietly(eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+
+	// Files written since the last sync(), which opens and forces each.
+	private HashSet<String> unsynced = new HashSet<String>();
+
+	// Asynchronous requests are queued to a pool of I/O threads, created on
+	// first use.  The queue is bounded; when it is full the submitting
+	// thread runs the request itself, which throttles it.  <lastOpOnBlock>
+	// holds the newest unfinished request on each block, so that a new
+	// request on the same block is chained after it.
+	private int ioThreads = DefaultIoThreads;
+	private ThreadPoolExecutor ioPool = null;
+	private HashMap<Integer, CompletableFuture<Void>> lastOpOnBlock = 
+		new HashMap<Integer, CompletableFuture<Void>>();
+
 	public BlockDevice(String pathname) throws FileNotFoundException {
+		this(pathname, false);
+	}
+
+	public BlockDevice(String pathname, boolean useChannels) 
+		throws FileNotFoundException {
+		this(pathname, useChannels, -1);
+	}
+
+	public BlockDevice(String pathname, boolean useChannels, int fanoutLevels) 
+		throws FileNotFoundException {
 		// Open a block device, which will be backed by a directory at
 		// <pathname>.  If there is not a directory at that pathname, one
-		// will be created.  
+		// will be created.  If <useChannels> is true, blocks are accessed
+		// through cached FileChannels with positional I/O, so that partial
+		// writes only touch the bytes being written.  <fanoutLevels> is the
+		// number of directory levels to spread block files over (0 thru 4);
+		// an existing store with a different layout is migrated in place.
+		// If it is -1, an existing store keeps its layout and a new store
+		// gets two levels.
+		if(fanoutLevels < -1 || fanoutLevels > MaxFanoutLevels){
+			throw new IllegalArgumentException();
+		}
+		this.useChannels = useChannels;
 		pathPrefix = pathname;
 		if(! pathPrefix.endsWith("/")){
 			pathPrefix = pathPrefix + "/";
 		}
 		pathForSB = pathPrefix + "SuperBlock";
+		pathForMap = pathPrefix + "AllocationMap";
+		pathForLayout = pathPrefix + "Layout";
 		pathPrefix = pathPrefix + "OrdinaryBlocks/";
 
 	// create directory, if it doesn't already exist
@@ -34,15 +128,210 @@ public class BlockDevice implements BlockStore {
 				throw new FileNotFoundException();
 			}
 		}else{
-			f.mkdir();
+			f.mkdirs();
+		}
+		try {
+			setUpLayout(fanoutLevels);
+		} catch(IOException x) {
+			// the store can't be used in a half-migrated layout
+			FileNotFoundException fnf = new FileNotFoundException(x.getMessage());
+			fnf.initCause(x);
+			throw fnf;
+		}
+		loadAllocationMap();
+
+		// finish reclaiming any old directories a previous format left behind
+		File[] siblings = f.getParentFile().listFiles();
+		if(siblings != null){
+			for(File sibling : siblings){
+				if(sibling.getName().startsWith(TrashPrefix)){
+					reclaimInBackground(sibling);
+				}
+			}
+		}
+	}
+
+	// Set the number of threads that serve asynchronous requests.
+	public synchronized void setIoThreads(int n) {
+		ioThreads = n;
+		if(ioPool != null){
+			if(n > ioPool.getMaximumPoolSize()){
+				ioPool.setMaximumPoolSize(n);
+				ioPool.setCorePoolSize(n);
+			}else{
+				ioPool.setCorePoolSize(n);
+				ioPool.setMaximumPoolSize(n);
+			}
+		}
+	}
+
+	private synchronized ThreadPoolExecutor ioPool() {
+		if(ioPool == null){
+			final AtomicInteger count = new AtomicInteger();
+			ioPool = new ThreadPoolExecutor(ioThreads, ioThreads, 
+				60, TimeUnit.SECONDS, 
+				new ArrayBlockingQueue<Runnable>(MaxQueuedRequests),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "BlockDevice-io-"+count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				},
+				new ThreadPoolExecutor.CallerRunsPolicy());
+			ioPool.allowCoreThreadTimeOut(true);
+		}
+		return ioPool;
+	}
+
+	// Queue <op> on block <blockNum>, after any unfinished request on it.
+	private CompletableFuture<Void> submit(final int blockNum, 
+		final Runnable op) {
+
+		final CompletableFuture<Void> next = new CompletableFuture<Void>();
+		CompletableFuture<Void> prev;
+		synchronized(lastOpOnBlock) {
+			prev = lastOpOnBlock.put(blockNum, next);
+		}
+		final Runnable task = () -> {
+			try {
+				op.run();
+				next.complete(null);
+			} catch(Throwable x) {
+				// even an Error must complete <next>, or every later request
+				// on this block would wait behind it forever
+				next.completeExceptionally(x);
+			}
+		};
+		next.whenComplete((v, x) -> {
+			synchronized(lastOpOnBlock) {
+				lastOpOnBlock.remove(blockNum, next);
+			}
+		});
+		if(prev == null){
+			ioPool().execute(task);
+		}else{
+			prev.whenComplete((v, x) -> ioPool().execute(task));
+		}
+		return next;
+	}
+
+	public CompletableFuture<Void> writeBlockAsync(final int blockNum, 
+		final byte[] buf, final int bufOffset, final int blockOffset, 
+		final int nbytes) {
+
+		return submit(blockNum, 
+			() -> writeBlock(blockNum, buf, bufOffset, blockOffset, nbytes));
+	}
+
+	public CompletableFuture<Void> readBlockAsync(final int blockNum, 
+		final byte[] buf, final int bufOffset, final int blockOffset, 
+		final int nbytes) {
+
+		return submit(blockNum, 
+			() -> readBlock(blockNum, buf, bufOffset, blockOffset, nbytes));
+	}
+
+	// Does block <blockNum> have backing storage?  Answered from memory.
+	public boolean isAllocated(int blockNum) {
+		synchronized(allocated) {
+			return allocated.get(blockNum);
+		}
+	}
+
+	private void loadAllocationMap() {
+		try {
+			File mapFile = new File(pathForMap);
+			boolean existed = mapFile.exists();
+			mapChannel = FileChannel.open(mapFile.toPath(), StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+			if(existed){
+				ByteBuffer bb = ByteBuffer.allocate((int) mapChannel.size());
+				while(bb.hasRemaining() && mapChannel.read(bb) >= 0){
+				}
+				allocated = BitSet.valueOf(bb.array());
+			}else{
+				// store from before the map existed; rebuild it from the files
+				List<File> files = new ArrayList<File>();
+				listBlockFiles(new File(pathPrefix), files);
+				for(File file : files){
+					setAllocated(Integer.parseInt(file.getName()), true);
+				}
+			}
+		} catch(IOException x) {
+			x.printStackTrace();
+		}
+	}
+
+	// Update the bit for <blockNum>, persisting the byte that holds it.
+	private void setAllocated(int blockNum, boolean value) throws IOException {
+		synchronized(allocated) {
+			if(allocated.get(blockNum) == value){
+				return;
+			}
+			allocated.set(blockNum, value);
+			byte b = 0;
+			for(int i=0; i<8; ++i){
+				if(allocated.get((blockNum & ~7) + i)){
+					b |= (byte)(1 << i);
+				}
+			}
+			ByteBuffer bb = ByteBuffer.wrap(new byte[] { b });
+			mapChannel.write(bb, blockNum / 8);
+		}
+	}
+
+	private static boolean isZero(byte[] buf, int offset, int nbytes) {
+		for(int i=0; i<nbytes; ++i){
+			if(buf[offset+i] != 0){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isZero(ByteBuffer bb) {
+		for(int i=bb.position(); i<bb.limit(); ++i){
+			if(bb.get(i) != 0){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Give back the backing file of a block, which now reads as zeroes.
+	private void releaseBlock(int blockNum) throws IOException {
+		String filename = pathForBlock(blockNum);
+		synchronized(openChannels) {
+			FileChannel ch = openChannels.remove(filename);
+			if(ch != null){
+				closeQuietly(ch);
+			}
+			new File(filename).delete();
 		}
+		setAllocated(blockNum, false);
 	}
 
 	public void format() {
+		closeAllChannels();
 		try{
 			byte[] zeroes = new byte[SuperBlockSize];
 			writeEntireFile(pathForSB, zeroes, 0, SuperBlockSize);
-			destroyDirectoryContents(pathPrefix);
+			// once the map is empty, every block reads as zeroes
+			synchronized(allocated) {
+				allocated.clear();
+				mapChannel.truncate(0);
+			}
+			// swap in an empty directory and delete the old one in the
+			// background, so formatting takes the same time for any size
+			File dir = new File(pathPrefix);
+			File old = new File(dir.getParentFile(), TrashPrefix+System.nanoTime());
+			if(dir.renameTo(old)){
+				dir.mkdirs();
+				reclaimInBackground(old);
+			}else{
+				destroyDirectoryContents(pathPrefix);
+			}
 		}catch(FileNotFoundException x){
 			x.printStackTrace();
 		}catch(IOException x){
@@ -54,7 +343,132 @@ public class BlockDevice implements BlockStore {
 	public int superBlockSize() {    return SuperBlockSize;    }
 
 	private String pathForBlock(int blockNum) {
-		return pathPrefix+Integer.toString(blockNum);
+		return pathForBlock(blockNum, fanoutLevels);
+	}
+
+	private static final char[] HexDigits = "0123456789abcdef".toCharArray();
+
+	private String pathForBlock(int blockNum, int levels) {
+		StringBuilder sb = new StringBuilder(pathPrefix);
+		for(int i=0; i<levels; ++i){
+			int b = (blockNum >>> (8*i)) & 0xff;
+			sb.append(HexDigits[b>>4]).append(HexDigits[b&15]).append('/');
+		}
+		return sb.append(blockNum).toString();
+	}
+
+	// Collect every block file under <dir>, at any depth.
+	private static void listBlockFiles(File dir, List<File> out) {
+		File[] filesList = dir.listFiles();
+		if(filesList == null){
+			return;
+		}
+		for(File file : filesList){
+			if(file.isDirectory()){
+				listBlockFiles(file, out);
+			}else{
+				try {
+					Integer.parseInt(file.getName());
+					out.add(file);
+				} catch(NumberFormatException x) {
+					// not a block file
+				}
+			}
+		}
+	}
+
+	private static int readLevels(File file) throws IOException {
+		return Integer.parseInt(new String(Files.readAllBytes(file.toPath()), 
+			"US-ASCII").trim());
+	}
+
+	private static void writeLevels(File file, int levels) throws IOException {
+		Files.write(file.toPath(), Integer.toString(levels).getBytes("US-ASCII"));
+	}
+
+	// Decide on the directory layout, migrating if <requested> differs from
+	// what the store has.  A migration records its target in Layout.migrating
+	// first, and one that was interrupted or failed is finished the next time
+	// the store is opened.  That is safe because every file is first moved
+	// out to a staging directory and only then to its new place, and a file
+	// is where it was, in staging, or in its new place, never lost.
+	private void setUpLayout(int requested) throws IOException {
+		File layoutFile = new File(pathForLayout);
+		File migratingFile = new File(pathForLayout+".migrating");
+		if(migratingFile.exists()){
+			migrateLayout(readLevels(migratingFile));
+		}
+		if(layoutFile.exists()){
+			fanoutLevels = readLevels(layoutFile);
+		}else{
+			String[] existing = new File(pathPrefix).list();
+			if(existing != null && existing.length > 0){
+				fanoutLevels = 0;     // store from before layouts existed
+			}else{
+				fanoutLevels = (requested >= 0) ? requested : DefaultFanoutLevels;
+			}
+			writeLevels(layoutFile, fanoutLevels);
+		}
+		if(requested >= 0 && requested != fanoutLevels){
+			migrateLayout(requested);
+		}
+	}
+
+	// Block files are named in decimal and fan-out directories in hex, so a
+	// block file of one layout can have the name of a directory of another
+	// (block 16, directory 16 for low byte 0x16).  So every block file is
+	// moved out to a flat staging directory first, the old directories are
+	// removed, and only then are the files moved to their new places.  If
+	// any move fails this throws, leaving Layout.migrating for a retry.
+	private void migrateLayout(int levels) throws IOException {
+		File migratingFile = new File(pathForLayout+".migrating");
+		writeLevels(migratingFile, levels);
+		File dir = new File(pathPrefix);
+		File staging = new File(dir.getParentFile(), StagingName);
+		if(! staging.isDirectory() && ! staging.mkdir()){
+			throw new IOException("can't create "+staging);
+		}
+		List<File> files = new ArrayList<File>();
+		listBlockFiles(dir, files);
+		for(File file : files){
+			moveFile(file, new File(staging, file.getName()));
+		}
+		removeEmptyDirectories(dir);
+
+		files.clear();
+		listBlockFiles(staging, files);
+		for(File file : files){
+			File dest = new File(pathForBlock(Integer.parseInt(file.getName()), 
+				levels));
+			File parent = dest.getParentFile();
+			if(! parent.isDirectory() && ! parent.mkdirs()){
+				throw new IOException("can't create "+parent);
+			}
+			moveFile(file, dest);
+		}
+		staging.delete();
+		fanoutLevels = levels;
+		writeLevels(new File(pathForLayout), levels);
+		migratingFile.delete();
+	}
+
+	private static void moveFile(File from, File to) throws IOException {
+		if(! from.renameTo(to)){
+			throw new IOException("can't move "+from+" to "+to);
+		}
+	}
+
+	private static void removeEmptyDirectories(File dir) {
+		File[] filesList = dir.listFiles();
+		if(filesList == null){
+			return;
+		}
+		for(File file : filesList){
+			if(file.isDirectory()){
+				removeEmptyDirectories(file);
+				file.delete();     // only succeeds if it is now empty
+			}
+		}
 	}
 
 	private void createDirectoryParents(String filename) {
@@ -80,6 +494,7 @@ public class BlockDevice implements BlockStore {
 		}
 		fos.write(buf, bufOffset, nbytes);
 		fos.close();
+		written(filename);
 	}
 
 	private void writePartialFile(String filename, byte[] buf, int bufOffset, 
@@ -102,23 +517,201 @@ public class BlockDevice implements BlockStore {
 		try {
 			fis = new FileInputStream(filename);
 		} catch (FileNotFoundException x) {
-			writeEntireFile(filename, zeroBlockBytes, 0, BlockSize);
-			fis = new FileInputStream(filename);
+			// never written; reads as zeroes
+			for(int i=0; i<nbytes; ++i){
+				buf[bufOffset+i] = 0;
+			}
+			return;
+		}
+		long skipped = 0;
+		while(skipped < fileOffset){
+			long n = fis.skip(fileOffset-skipped);
+			if(n <= 0){
+				break;
+			}
+			skipped += n;
+		}
+		int nread = 0;
+		while(skipped == fileOffset && nread < nbytes){
+			int n = fis.read(buf, bufOffset+nread, nbytes-nread);
+			if(n < 0){
+				break;
+			}
+			nread += n;
 		}
-		fis.skip(fileOffset);
-		fis.read(buf, bufOffset, nbytes);
 		fis.close();
+		// anything past the end of the file reads as zeroes
+		for(int i=nread; i<nbytes; ++i){
+			buf[bufOffset+i] = 0;
+		}
+	}
+
+	private static void closeQuietly(FileChannel ch) {
+		try {
+			ch.close();
+		} catch(IOException x) {
+			x.printStackTrace();
+		}
+	}
+
+	private void closeAllChannels() {
+		synchronized(openChannels) {
+			for(Iterator<FileChannel> it=openChannels.values().iterator(); 
+				it.hasNext(); ){
+				closeQuietly(it.next());
+				it.remove();
+			}
+		}
+	}
+
+	// Get a cached channel for <filename>.  If the file doesn't exist, it is
+	// created when <create> is true, otherwise null is returned.
+	private FileChannel channelFor(String filename, boolean create) 
+		throws IOException {
+
+		synchronized(openChannels) {
+			FileChannel ch = openChannels.get(filename);
+			if(ch != null && ch.isOpen()){
+				return ch;
+			}
+			File f = new File(filename);
+			if(! f.exists()){
+				if(! create){
+					return null;
+				}
+				createDirectoryParents(filename);
+			}
+			ch = FileChannel.open(f.toPath(), StandardOpenOption.READ, 
+				StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+			openChannels.put(filename, ch);
+			return ch;
+		}
+	}
+
+	private void writeChannel(String filename, ByteBuffer src, 
+		long fileOffset) throws IOException {
+
+		int start = src.position();
+		try {
+			writeChannelOnce(filename, src, fileOffset);
+		} catch(ClosedChannelException x) {
+			// evicted from the cache by another thread mid-write; the write
+			// is idempotent, so just do it again on a fresh channel
+			src.position(start);
+			writeChannelOnce(filename, src, fileOffset);
+		}
+	}
+
+	private void writeChannelOnce(String filename, ByteBuffer src, 
+		long fileOffset) throws IOException {
+
+		FileChannel ch = channelFor(filename, true);
+		long pos = fileOffset;
+		while(src.hasRemaining()){
+			pos += ch.write(src, pos);
+		}
+		written(filename);
+	}
+
+	private void readChannel(String filename, ByteBuffer dst, 
+		long fileOffset) throws IOException {
+
+		int start = dst.position();
+		try {
+			readChannelOnce(filename, dst, fileOffset);
+		} catch(ClosedChannelException x) {
+			dst.position(start);
+			readChannelOnce(filename, dst, fileOffset);
+		}
+	}
+
+	private void readChannelOnce(String filename, ByteBuffer dst, 
+		long fileOffset) throws IOException {
+
+		FileChannel ch = channelFor(filename, false);
+		long pos = fileOffset;
+		if(ch != null){
+			while(dst.hasRemaining()){
+				int n = ch.read(dst, pos);
+				if(n < 0){
+					break;
+				}
+				pos += n;
+			}
+		}
+		// a missing file, or anything past the end of one, reads as zeroes
+		while(dst.hasRemaining()){
+			dst.put((byte)0);
+		}
 	}
 
 	private void destroyDirectoryContents(String pathPrefix) {
-		File dir = new File(pathPrefix);
-		if(dir != null){
-			File[] filesList = new File(pathPrefix).listFiles();
-			if(filesList != null){
-				for(File file : filesList) {
-					file.delete();
+		File[] filesList = new File(pathPrefix).listFiles();
+		if(filesList != null){
+			for(File file : filesList) {
+				deleteRecursively(file);
+			}
+		}
+	}
+
+	private static void deleteRecursively(File file) {
+		File[] filesList = file.listFiles();
+		if(filesList != null){
+			for(File child : filesList){
+				deleteRecursively(child);
+			}
+		}
+		file.delete();
+	}
+
+	private static void reclaimInBackground(final File dir) {
+		Thread t = new Thread(() -> deleteRecursively(dir), 
+			"BlockDevice-reclaim");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private void written(String filename) {
+		synchronized(unsynced) {
+			unsynced.add(filename);
+		}
+	}
+
+	// Force every file written since the last sync, and the allocation map.
+	// A file deleted in the meantime is skipped.
+	public void sync() {
+		List<String> filenames;
+		synchronized(unsynced) {
+			filenames = new ArrayList<String>(unsynced);
+			unsynced.clear();
+		}
+		try {
+			for(String filename : filenames){
+				File f = new File(filename);
+				if(! f.exists()){
+					continue;
+				}
+				FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.WRITE);
+				try {
+					ch.force(false);
+				} finally {
+					ch.close();
 				}
 			}
+			mapChannel.force(false);
+		} catch(IOException x) {
+			x.printStackTrace();
+		}
+	}
+
+	// The block's file is deleted.
+	public void trimBlock(int blockNum) {
+		try {
+			if(isAllocated(blockNum)){
+				releaseBlock(blockNum);
+			}
+		} catch(IOException x) {
+			x.printStackTrace();
 		}
 	}
 
@@ -126,7 +719,21 @@ public class BlockDevice implements BlockStore {
 		int blockOffset, int nbytes) {
 
 		try {
-			if( (blockOffset==0) && (blockOffset+nbytes==BlockSize) ){
+			if(isZero(buf, bufOffset, nbytes)){
+				if(! isAllocated(blockNum)){
+					// zeroes over a block that already reads as zeroes
+					return;
+				}
+				if( (blockOffset==0) && (nbytes==BlockSize) ){
+					releaseBlock(blockNum);
+					return;
+				}
+			}
+			setAllocated(blockNum, true);
+			if(useChannels){
+				writeChannel(pathForBlock(blockNum), 
+					ByteBuffer.wrap(buf, bufOffset, nbytes), blockOffset);
+			}else if( (blockOffset==0) && (blockOffset+nbytes==BlockSize) ){
 				writeEntireFile(pathForBlock(blockNum), buf, bufOffset, BlockSize);
 			}else{
 				writePartialFile(pathForBlock(blockNum), buf, bufOffset, blockOffset, 
@@ -145,7 +752,17 @@ public class BlockDevice implements BlockStore {
 		try {
 			assert blockOffset >= 0;
 			assert (blockOffset+nbytes) <= BlockSize;
-			readFromFile(pathForBlock(blockNum), buf, bufOffset, blockOffset, nbytes);
+			if(! isAllocated(blockNum)){
+				for(int i=0; i<nbytes; ++i){
+					buf[bufOffset+i] = 0;
+				}
+			}else if(useChannels){
+				readChannel(pathForBlock(blockNum), 
+					ByteBuffer.wrap(buf, bufOffset, nbytes), blockOffset);
+			}else{
+				readFromFile(pathForBlock(blockNum), buf, bufOffset, blockOffset, 
+					nbytes);
+			}
 		} catch(FileNotFoundException x) {
 			x.printStackTrace();
 		} catch(IOException x) {
@@ -153,11 +770,130 @@ public class BlockDevice implements BlockStore {
 		}
 	}
 
+	// In channel mode, buffers go straight to the FileChannel, so a direct
+	// buffer reaches the OS without being copied through a heap array.
+	public void writeBlock(int blockNum, ByteBuffer src, int blockOffset) 
+		throws DataIntegrityException {
+
+		if(! useChannels){
+			BlockStore.super.writeBlock(blockNum, src, blockOffset);
+			return;
+		}
+		assert blockOffset >= 0;
+		assert (blockOffset+src.remaining()) <= BlockSize;
+		try {
+			if(isZero(src)){
+				if(! isAllocated(blockNum)){
+					src.position(src.limit());
+					return;
+				}
+				if( (blockOffset==0) && (src.remaining()==BlockSize) ){
+					releaseBlock(blockNum);
+					src.position(src.limit());
+					return;
+				}
+			}
+			setAllocated(blockNum, true);
+			writeChannel(pathForBlock(blockNum), src, blockOffset);
+		} catch(IOException x) {
+			x.printStackTrace();
+		}
+	}
+
+	public void readBlock(int blockNum, ByteBuffer dst, int blockOffset) 
+		throws DataIntegrityException {
+
+		if(! useChannels){
+			BlockStore.super.readBlock(blockNum, dst, blockOffset);
+			return;
+		}
+		assert blockOffset >= 0;
+		assert (blockOffset+dst.remaining()) <= BlockSize;
+		try {
+			if(! isAllocated(blockNum)){
+				while(dst.hasRemaining()){
+					dst.put((byte)0);
+				}
+			}else{
+				readChannel(pathForBlock(blockNum), dst, blockOffset);
+			}
+		} catch(IOException x) {
+			x.printStackTrace();
+		}
+	}
+
+	// Vectored operations: ranges are sorted by block number (keeping the
+	// order of ranges on the same block).  In stream mode, all the ranges
+	// that land on one block share a single read or rewrite of its file.
+	private static final Comparator<BlockRange> ByBlockNum = 
+		new Comparator<BlockRange>() {
+			public int compare(BlockRange a, BlockRange b) {
+				return Integer.compare(a.blockNum, b.blockNum);
+			}
+		};
+
+	public void writeBlocks(List<BlockRange> ranges) {
+		List<BlockRange> sorted = new ArrayList<BlockRange>(ranges);
+		Collections.sort(sorted, ByBlockNum);
+		int i = 0;
+		while(i < sorted.size()){
+			int j = i+1;
+			while(j < sorted.size() && sorted.get(j).blockNum == sorted.get(i).blockNum){
+				++j;
+			}
+			if(useChannels || j == i+1){
+				for(int k=i; k<j; ++k){
+					BlockRange r = sorted.get(k);
+					writeBlock(r.blockNum, r.buf, r.bufOffset, r.blockOffset, r.nbytes);
+				}
+			}else{
+				int blockNum = sorted.get(i).blockNum;
+				byte[] image = new byte[BlockSize];
+				readBlock(blockNum, image, 0, 0, BlockSize);
+				for(int k=i; k<j; ++k){
+					BlockRange r = sorted.get(k);
+					System.arraycopy(r.buf, r.bufOffset, image, r.blockOffset, r.nbytes);
+				}
+				writeBlock(blockNum, image, 0, 0, BlockSize);
+			}
+			i = j;
+		}
+	}
+
+	public void readBlocks(List<BlockRange> ranges) {
+		List<BlockRange> sorted = new ArrayList<BlockRange>(ranges);
+		Collections.sort(sorted, ByBlockNum);
+		int i = 0;
+		while(i < sorted.size()){
+			int j = i+1;
+			while(j < sorted.size() && sorted.get(j).blockNum == sorted.get(i).blockNum){
+				++j;
+			}
+			if(useChannels || j == i+1){
+				for(int k=i; k<j; ++k){
+					BlockRange r = sorted.get(k);
+					readBlock(r.blockNum, r.buf, r.bufOffset, r.blockOffset, r.nbytes);
+				}
+			}else{
+				byte[] image = new byte[BlockSize];
+				readBlock(sorted.get(i).blockNum, image, 0, 0, BlockSize);
+				for(int k=i; k<j; ++k){
+					BlockRange r = sorted.get(k);
+					System.arraycopy(image, r.blockOffset, r.buf, r.bufOffset, r.nbytes);
+				}
+			}
+			i = j;
+		}
+	}
+
 	public void writeSuperBlock(byte[] buf, int bufOffset, int blockOffset, 
 		int nbytes) {
 
 		try {
-			if( (blockOffset==0) && (blockOffset+nbytes==SuperBlockSize) ){
+			if(useChannels){
+				writeChannel(pathForSB, ByteBuffer.wrap(buf, bufOffset, nbytes), 
+					blockOffset);
+			}else if( (blockOffset==0) && (blockOffset+nbytes==SuperBlockSize) ){
 				writeEntireFile(pathForSB, buf, bufOffset, nbytes);
 			}else{
 				writePartialFile(pathForSB, buf, bufOffset, blockOffset, nbytes, 
@@ -176,7 +912,12 @@ public class BlockDevice implements BlockStore {
 		try {
 			assert blockOffset >= 0;
 			assert (blockOffset+nbytes) <= SuperBlockSize;
-			readFromFile(pathForSB, buf, bufOffset, blockOffset, nbytes);
+			if(useChannels){
+				readChannel(pathForSB, ByteBuffer.wrap(buf, bufOffset, nbytes), 
+					blockOffset);
+			}else{
+				readFromFile(pathForSB, buf, bufOffset, blockOffset, nbytes);
+			}
 		} catch(FileNotFoundException x) {
 			x.printStackTrace();
 		} catch(IOException x) {
@@ -0,0 +1,27 @@
+// One piece of a vectored BlockStore operation (see BlockStore.readBlocks
+// and BlockStore.writeBlocks).  It pairs bytes (blockOffset) thru
+// (blockOffset+nbytes-1) of block <blockNum> with buf[bufOffset] thru
+// buf[bufOffset+nbytes-1].
+
+public class BlockRange {
+	public int    blockNum;
+	public byte[] buf;
+	public int    bufOffset;
+	public int    blockOffset;
+	public int    nbytes;
+
+	public BlockRange(int blockNum, byte[] buf, int bufOffset, 
+		int blockOffset, int nbytes) {
+
+		this.blockNum = blockNum;
+		this.buf = buf;
+		this.bufOffset = bufOffset;
+		this.blockOffset = blockOffset;
+		this.nbytes = nbytes;
+	}
+
+	// The same byte range of the caller's buffer, but on another block.
+	public BlockRange onBlock(int otherBlockNum) {
+		return new BlockRange(otherBlockNum, buf, bufOffset, blockOffset, nbytes);
+	}
+}
@@ -1,3 +1,7 @@
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 
 public interface BlockStore {
 	// Interface for a "block store" functionality that provides persistent
@@ -59,4 +63,116 @@ public interface BlockStore {
 	// completed due to tampering with data in the store.
 	public void readSuperBlock(byte[] buf, int bufOffset, int blockOffset, 
 		int nbytes) throws DataIntegrityException;
-}
\ No newline at end of file
+
+	// ByteBuffer versions of writeBlock and readBlock.  They transfer the
+	// bytes between the buffer's position and its limit, to or from bytes
+	// (blockOffset) onward of the block, and advance the buffer's position
+	// past them.  Bounds and integrity failures are reported exactly as for
+	// the byte-array versions.  The defaults below adapt to the byte-array
+	// versions; stores that can work on buffers directly (for example, to
+	// hand a direct buffer to the OS) override them.
+	public default void writeBlock(int blockNum, ByteBuffer src, 
+		int blockOffset) throws DataIntegrityException {
+
+		int nbytes = src.remaining();
+		if(src.hasArray()){
+			writeBlock(blockNum, src.array(), src.arrayOffset()+src.position(), 
+				blockOffset, nbytes);
+			src.position(src.limit());
+		}else{
+			byte[] tmp = new byte[nbytes];
+			src.duplicate().get(tmp);
+			writeBlock(blockNum, tmp, 0, blockOffset, nbytes);
+			src.position(src.limit());
+		}
+	}
+
+	public default void readBlock(int blockNum, ByteBuffer dst, 
+		int blockOffset) throws DataIntegrityException {
+
+		int nbytes = dst.remaining();
+		if(dst.hasArray()){
+			readBlock(blockNum, dst.array(), dst.arrayOffset()+dst.position(), 
+				blockOffset, nbytes);
+			dst.position(dst.limit());
+		}else{
+			byte[] tmp = new byte[nbytes];
+			readBlock(blockNum, tmp, 0, blockOffset, nbytes);
+			dst.put(tmp);
+		}
+	}
+
+	// Make every write that has returned so far durable, so that it
+	// survives a crash.  A store that holds writes back pushes them down
+	// first, and a store that wraps another passes the sync on to it.  The
+	// default does nothing, for stores whose writes are as durable as they
+	// will get by the time they return.
+	public default void sync() throws DataIntegrityException {
+	}
+
+	// Tell the store that the contents of block <blockNum> are no longer
+	// needed.  A store that can give the space back does so, and the block
+	// then reads as zeroes; otherwise the block is left as it is.  Either
+	// way it can be written again as usual.  The default keeps the block.
+	public default void trimBlock(int blockNum) throws DataIntegrityException {
+	}
+
+	// Vectored versions of writeBlock and readBlock.  Each BlockRange in
+	// <ranges> is one writeBlock (or readBlock) call.  Writes to the same
+	// block take effect in list order; apart from that, a store is free to
+	// sort, coalesce and share work between the ranges.  The defaults just
+	// do one call per range.
+	public default void writeBlocks(List<BlockRange> ranges) 
+		throws DataIntegrityException {
+
+		for(BlockRange r : ranges){
+			writeBlock(r.blockNum, r.buf, r.bufOffset, r.blockOffset, r.nbytes);
+		}
+	}
+
+	public default void readBlocks(List<BlockRange> ranges) 
+		throws DataIntegrityException {
+
+		for(BlockRange r : ranges){
+			readBlock(r.blockNum, r.buf, r.bufOffset, r.blockOffset, r.nbytes);
+		}
+	}
+
+	// Asynchronous versions of writeBlock and readBlock.  They return at
+	// once with a future that completes when the operation is done, or
+	// completes exceptionally with whatever writeBlock/readBlock would have
+	// thrown.  Callers may have many operations outstanding, and they may
+	// complete in any order, except that operations on the same block take
+	// effect in the order they were submitted.  buf must not be touched
+	// until the future completes.  The defaults just run the operation on
+	// the calling thread.  BlockDevice overrides them with a pool of I/O
+	// threads, and the multiplexor's BlockStores pass them on to the store
+	// they wrap; BlockStoreAuthEnc and CachingBlockStore keep the defaults,
+	// so in the server's stack an asynchronous call still runs on the
+	// calling thread.
+	public default CompletableFuture<Void> writeBlockAsync(int blockNum, 
+		byte[] buf, int bufOffset, int blockOffset, int nbytes) {
+
+		CompletableFuture<Void> ret = new CompletableFuture<Void>();
+		try {
+			writeBlock(blockNum, buf, bufOffset, blockOffset, nbytes);
+			ret.complete(null);
+		} catch(DataIntegrityException | RuntimeException x) {
+			ret.completeExceptionally(x);
+		}
+		return ret;
+	}
+
+	public default CompletableFuture<Void> readBlockAsync(int blockNum, 
+		byte[] buf, int bufOffset, int blockOffset, int nbytes) {
+
+		CompletableFuture<Void> ret = new CompletableFuture<Void>();
+		try {
+			readBlock(blockNum, buf, bufOffset, blockOffset, nbytes);
+			ret.complete(null);
+		} catch(DataIntegrityException | RuntimeException x) {
+			ret.completeExceptionally(x);
+		}
+		return ret;
+	}
+}
@@ -2,142 +2,972 @@
 // This class provides a BlockStore that guarantees confidentiality and
 // integrity of all the data it holds.  The constructor takes a BlockStore
 // (which doesn't guarantee confidentiality and integrity).
+//
+// Integrity comes from a k-ary Merkle tree laid over the blocks: node n has
+// children k*n+1 thru k*n+k.  Each device block holds the node's value
+// followed by k hash slots, one per child, so the usable block size is the
+// device block size less k hashes.  A node's hash covers its slots and its
+// value and lives in its parent's slot (the root's lives in the
+// superblock).
+//
+// Which nodes are in use is kept in an allocation bitmap.  A node that
+// isn't allocated reads as all zeroes and its hash is all zeroes, without
+// any device I/O.  Node n is kept in device block 2n, and page p of the
+// bitmap in device block 2p+1.  The bitmap is loaded into memory when the
+// store is opened and checked against a digest kept in the superblock
+// next to the root hash; the digest is PRF of the digests of the pages.
+//
+// In the hash-only layout, each block also stores a digest of its value
+// just before the slots, and a node's hash covers only its digest and its
+// slots.  Verifying a path then reads the value of the block being
+// accessed, but only the small digest-and-slots record of each ancestor.
+//
+// The arity k and the layout are chosen when the store is formatted and
+// are recorded in the superblock; an existing store keeps what it was
+// formatted with.
+// Device superblock layout:
+//   user bytes | format(4) | bitmap pages(4) | bitmap digest | root hash | key
+// where format is the arity, plus HASH_ONLY_FLAG for the hash-only layout.
+//
+// Any number of threads may use the store at once.  Reads verify in
+// parallel, and writes to disjoint subtrees only meet where their paths to
+// the root join.  See the comment on node locks below.
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class BlockStoreAuthEnc implements BlockStore {
     private BlockStore    dev;
     private PRGen         prg;
     private static final int KEY_BYTES = PRF.KEY_SIZE_BYTES;
     private static final int HASH_BYTES = PRF.OUTPUT_SIZE_BYTES;
-    private byte[] key;
+    private static final int FORMAT_BYTES = 4;
+    private static final int PAGE_COUNT_BYTES = 4;
+    // node n lives in device block 2n, so node numbers stop here
+    private static final int MAX_NODE = Integer.MAX_VALUE/2 - 1;
+    private static final int HASH_ONLY_FLAG = 0x10000;
+    public static final int DEFAULT_ARITY = 2;
+    public static final int MAX_ARITY = 64;
+    private byte[]  key;
+    private int     arity;
+    private boolean hashOnly;
 
-    // This function checks if the blockNum is empty adn retruns TRUE if it is
-    // or false otherwise.
-    private boolean blockIsEmpty(int blockNum) throws DataIntegrityException{
-        byte[] value = new byte[dev.blockSize()];
-        byte[] empty = new byte[dev.blockSize()];
-        dev.readBlock(blockNum, value, 0, 0, dev.blockSize());
-        return Arrays.equals(value, empty);
+    // Per-thread scratch space, so that steady-state reads and writes don't
+    // allocate block-sized buffers.  The buffers are sized for the current
+    // tree format, and are replaced if a format changes blockSize().
+    private static final int MAX_DEPTH = 64;
+    private static final byte[] ZERO_HASH = new byte[HASH_BYTES];
+    private static final class Scratch {
+        byte[]   raw;
+        byte[]   target;     // raw device block of the node being accessed
+        byte[]   value;
+        byte[]   meta;
+        byte[]   plain;
+        byte[]   cipher;
+        byte[]   compar;
+        byte[]   reader;
+        byte[]   nonce = new byte[8];
+        int[]    pathNodes = new int[MAX_DEPTH];
+        byte[][] pathHashes = new byte[MAX_DEPTH][];
+        Lock[]   pathLocks = new Lock[MAX_DEPTH];
+    }
+    private final ThreadLocal<Scratch> scratchSpace = new ThreadLocal<Scratch>() {
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    // The Merkle tree hashes with a fixed key, so one PRF per thread does;
+    // eval finishes a computation and leaves the PRF ready for the next.
+    private static final ThreadLocal<PRF> hashPrf = new ThreadLocal<PRF>() {
+        protected PRF initialValue() {
+            return new PRF(new byte[KEY_BYTES]); //FIXED KEY 0
+        }
+    };
+
+    private Scratch scratch() {
+        Scratch sc = scratchSpace.get();
+        if (sc.value == null || sc.value.length != blockSize()){
+            sc.raw = new byte[dev.blockSize()];
+            sc.target = new byte[dev.blockSize()];
+            sc.value = new byte[blockSize()];
+            sc.meta = new byte[metaBytes()];
+            sc.plain = new byte[blockSize()];
+            sc.cipher = new byte[blockSize()];
+            sc.compar = new byte[blockSize()];
+            sc.reader = new byte[blockSize()];
+        }
+        return sc;
+    }
+
+    private static boolean equalAt(byte[] a, int aOffset, byte[] b, 
+        int bOffset, int nbytes) {
+        for(int i=0; i<nbytes; i++){
+            if (a[aOffset+i] != b[bOffset+i])
+                return false;
+        }
+        return true;
+    }
+
+    // Verified hash cache: node -> hash that has been checked all the way up
+    // to the root in the superblock (or that we computed ourselves while
+    // updating the tree).  Once a node's hash is here, checkIntegrity can
+    // stop as soon as it reaches that node.  Least recently used hashes are
+    // dropped when there are more than hashCacheNodes of them.
+    private static final int DEFAULT_HASH_CACHE_NODES = 4096;
+    private int hashCacheNodes = DEFAULT_HASH_CACHE_NODES;
+    private long hashCacheHits = 0;
+    private long hashCacheMisses = 0;
+    private final LinkedHashMap<Integer, byte[]> verified = 
+        new LinkedHashMap<Integer, byte[]>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> e) {
+                return size() > hashCacheNodes;
+            }
+        };
+
+    // Look up the trusted hash of a node, or null if it is not cached.
+    private byte[] cachedHash(int blockNum) {
+        synchronized(verified) {
+            byte[] hash = verified.get(blockNum);
+            if(hash == null)
+                hashCacheMisses++;
+            else
+                hashCacheHits++;
+            return hash;
+        }
+    }
+
+    private void cacheHash(int blockNum, byte[] hash) {
+        synchronized(verified) {
+            verified.put(blockNum, hash);
+        }
+    }
+
+    private void uncacheHash(int blockNum) {
+        synchronized(verified) {
+            verified.remove(blockNum);
+        }
+    }
+
+    // Set how many node hashes the verified cache may hold (0 disables it).
+    public void setHashCacheNodes(int nodes) {
+        synchronized(verified) {
+            hashCacheNodes = nodes;
+            while(verified.size() > nodes){
+                verified.remove(verified.keySet().iterator().next());
+            }
+        }
+    }
+
+    // Verified cache statistics: lookups that found a trusted hash, and
+    // lookups that had to keep walking towards the root.
+    public long hashCacheHits() {
+        synchronized(verified) {    return hashCacheHits;    }
+    }
+
+    public long hashCacheMisses() {
+        synchronized(verified) {    return hashCacheMisses;    }
+    }
+
+    public void resetHashCacheStats() {
+        synchronized(verified) {    hashCacheHits = hashCacheMisses = 0;    }
+    }
+
+    // Read-after-write verification: after a write the block is read back
+    // (integrity walk plus decrypt) and compared with what was written.
+    // This is done for every write (VERIFY_ALWAYS), for one write in N
+    // (setWriteVerification(N)), or never (VERIFY_OFF).  The integrity
+    // check before a write always runs, since rehashing on top of a
+    // tampered tree would make the tampering look legitimate.
+    public static final int VERIFY_OFF = 0;
+    public static final int VERIFY_ALWAYS = 1;
+    private volatile int verifyEvery = VERIFY_ALWAYS;
+    private final AtomicLong writesSeen = new AtomicLong();
+    private final AtomicLong writeVerifications = new AtomicLong();
+
+    public void setWriteVerification(int everyN) {
+        if(everyN < 0){
+            throw new IllegalArgumentException();
+        }
+        verifyEvery = everyN;
+    }
+
+    // Number of writes that were read back and checked, and that weren't.
+    public long writeVerifications() {
+        return writeVerifications.get();
+    }
+
+    public long writesUnverified() {
+        return writesSeen.get() - writeVerifications.get();
+    }
+
+    // Decide whether the write that just happened gets read back.
+    private boolean shouldVerifyWrite() {
+        long n = writesSeen.incrementAndGet();
+        int every = verifyEvery;
+        if(every == VERIFY_OFF || n % every != 0){
+            return false;
+        }
+        writeVerifications.incrementAndGet();
+        return true;
+    }
+
+    // Node locks.  Every node has a read/write lock; nodes at the same depth
+    // share LOCK_STRIPES locks, picked by node number, so siblings get
+    // different locks.
+    //  - A reader holds its block's lock shared while it verifies and
+    //    decrypts, and checkIntegrity takes the lock of each node on the
+    //    path shared until the walk is over.
+    //  - A writer holds its block's lock exclusively, and rehashes towards
+    //    the root hand over hand: a node's lock and its parent's are held
+    //    together while the node's hash goes into the parent's slot.  The
+    //    root's hash is published to the superblock under the root's lock.
+    //  - Locks are only ever taken deepest first, and by stripe within a
+    //    depth, so there is no deadlock.
+    // Whole-tree operations (format, flushing deferred hashes, switching
+    // deferral) hold treeLock exclusively; everything else holds it shared.
+    // Superblock access goes through superLock, so the device never sees
+    // two partial updates of the superblock at once.
+    private static final int LOCK_DEPTHS = 32;
+    private static final int LOCK_STRIPES = 64;
+    private final ReentrantReadWriteLock treeLock = new ReentrantReadWriteLock();
+    private final ReentrantReadWriteLock[][] nodeLocks =
+        new ReentrantReadWriteLock[LOCK_DEPTHS][LOCK_STRIPES];
+    private final Object superLock = new Object();
+
+    // Number of edges between a node and the root.
+    private int depth(int blockNum) {
+        int d = 0;
+        for(int n=blockNum; n!=0; n=parent(n)){
+            d++;
+        }
+        return d;
+    }
+
+    private ReentrantReadWriteLock nodeLock(int blockNum, int depth) {
+        return nodeLocks[depth][blockNum % LOCK_STRIPES];
+    }
+
+    // Lock every node on the paths from <blockNums> to the root, in lock
+    // order, and return the locks taken.
+    private List<Lock> lockPaths(Iterable<Integer> blockNums,
+        boolean exclusive) {
+        TreeMap<Integer, ReentrantReadWriteLock> ordered =
+            new TreeMap<Integer, ReentrantReadWriteLock>();
+        for(int blockNum : blockNums){
+            int d = depth(blockNum);
+            for(int n=blockNum; n!=-1; n=parent(n), d--){
+                ordered.put((LOCK_DEPTHS-1-d)*LOCK_STRIPES + n%LOCK_STRIPES,
+                    nodeLock(n, d));
+            }
+        }
+        List<Lock> held = new ArrayList<Lock>();
+        try {
+            for(ReentrantReadWriteLock rw : ordered.values()){
+                Lock l = exclusive ? rw.writeLock() : rw.readLock();
+                l.lock();
+                held.add(l);
+            }
+        } catch(RuntimeException x) {
+            unlockAll(held);
+            throw x;
+        }
+        return held;
+    }
+
+    private static void unlockAll(List<Lock> locks) {
+        for(int i=locks.size()-1; i>=0; i--){
+            locks.get(i).unlock();
+        }
+    }
+
+    private void readSuper(byte[] buf, int bufOffset, int blockOffset,
+        int nbytes) throws DataIntegrityException {
+        synchronized(superLock) {
+            dev.readSuperBlock(buf, bufOffset, blockOffset, nbytes);
+        }
+    }
+
+    private void writeSuper(byte[] buf, int bufOffset, int blockOffset,
+        int nbytes) throws DataIntegrityException {
+        synchronized(superLock) {
+            dev.writeSuperBlock(buf, bufOffset, blockOffset, nbytes);
+        }
+    }
+
+    // Allocation bitmap: bit n is set once node n has been written, or has
+    // had a child's hash written into it.  Pages of the bitmap that have
+    // changed since they were last written are in dirtyPages.  All guarded
+    // by <allocated>.
+    private final BitSet allocated = new BitSet();
+    private final Set<Integer> dirtyPages = new HashSet<Integer>();
+    private final List<byte[]> pageDigests = new ArrayList<byte[]>();
+
+    private int bitsPerPage() {
+        return dev.blockSize()*8;
+    }
+
+    private boolean isAllocated(int blockNum) {
+        synchronized(allocated) {
+            return allocated.get(blockNum);
+        }
+    }
+
+    private void setAllocated(int blockNum) {
+        synchronized(allocated) {
+            if(!allocated.get(blockNum)){
+                allocated.set(blockNum);
+                dirtyPages.add(blockNum / bitsPerPage());
+            }
+        }
+    }
+
+    // Allocate a node on the path of a written block if it isn't yet.  Its
+    // own value was never written, so it gets an encrypted zero value, to
+    // read back as zeroes rather than as the keystream over whatever the
+    // device holds there.  Returns whether the node was newly allocated, in
+    // which case its value has changed.
+    private boolean allocateNode(int blockNum) throws DataIntegrityException {
+        if(isAllocated(blockNum)){
+            return false;
+        }
+        encryptBlock(blockNum, ByteBuffer.allocate(0), 0, null);
+        return true;
+    }
+
+    private void clearAllocated(int blockNum) {
+        synchronized(allocated) {
+            if(allocated.get(blockNum)){
+                allocated.clear(blockNum);
+                dirtyPages.add(blockNum / bitsPerPage());
+            }
+        }
+    }
+
+    private byte[] pageBytes(int page) {
+        byte[] bytes = new byte[dev.blockSize()];
+        byte[] bits = allocated.get(page*bitsPerPage(), 
+            (page+1)*bitsPerPage()).toByteArray();
+        System.arraycopy(bits, 0, bytes, 0, bits.length);
+        return bytes;
+    }
+
+    private byte[] bitmapDigest() {
+        if (pageDigests.isEmpty())
+            return ZERO_HASH;
+        PRF prf = hashPrf.get();
+        for(int i=0; i<pageDigests.size()-1; i++){
+            prf.update(pageDigests.get(i));
+        }
+        return prf.eval(pageDigests.get(pageDigests.size()-1));
+    }
+
+    // Write every changed page of the bitmap, and the page count and digest
+    // to the superblock.
+    private void writeBitmap() throws DataIntegrityException {
+        synchronized(allocated) {
+            if(dirtyPages.isEmpty()){
+                return;
+            }
+            for(int page : dirtyPages){
+                byte[] bytes = pageBytes(page);
+                dev.writeBlock(2*page+1, bytes, 0, 0, bytes.length);
+                while(pageDigests.size() <= page){
+                    pageDigests.add(hashPrf.get().eval(new byte[dev.blockSize()]));
+                }
+                pageDigests.set(page, hashPrf.get().eval(bytes));
+            }
+            dirtyPages.clear();
+            byte[] header = new byte[PAGE_COUNT_BYTES+HASH_BYTES];
+            ByteBuffer.wrap(header).putInt(pageDigests.size()).put(bitmapDigest());
+            writeSuper(header, 0, pageCountOffset(), header.length);
+        }
+    }
+
+    // Load the bitmap, checking it against the digest in the superblock.
+    private void readBitmap() throws DataIntegrityException {
+        byte[] header = new byte[PAGE_COUNT_BYTES+HASH_BYTES];
+        readSuper(header, 0, pageCountOffset(), header.length);
+        ByteBuffer hb = ByteBuffer.wrap(header);
+        int pages = hb.getInt();
+        byte[] storedDigest = new byte[HASH_BYTES];
+        hb.get(storedDigest);
+
+        synchronized(allocated) {
+            allocated.clear();
+            dirtyPages.clear();
+            pageDigests.clear();
+            byte[] bytes = new byte[dev.blockSize()];
+            for(int page=0; page<pages; page++){
+                dev.readBlock(2*page+1, bytes, 0, 0, bytes.length);
+                pageDigests.add(hashPrf.get().eval(bytes));
+                BitSet bits = BitSet.valueOf(bytes);
+                for(int i=bits.nextSetBit(0); i>=0; i=bits.nextSetBit(i+1)){
+                    allocated.set(page*bitsPerPage()+i);
+                }
+            }
+            if(!Arrays.equals(bitmapDigest(), storedDigest)){
+                throw new DataIntegrityException();
+            }
+        }
+    }
+
+    // Device access to node <blockNum>, which lives in device block 2n.
+    private void readNode(int blockNum, byte[] buf, int bufOffset, 
+        int blockOffset, int nbytes) throws DataIntegrityException {
+        dev.readBlock(2*blockNum, buf, bufOffset, blockOffset, nbytes);
+    }
+
+    private void writeNode(int blockNum, byte[] buf, int bufOffset, 
+        int blockOffset, int nbytes) throws DataIntegrityException {
+        dev.writeBlock(2*blockNum, buf, bufOffset, blockOffset, nbytes);
+    }
+
+    private void writeNode(int blockNum, ByteBuffer src, int blockOffset) 
+        throws DataIntegrityException {
+        dev.writeBlock(2*blockNum, src, blockOffset);
+    }
+
+    private static void checkBlockNum(int blockNum) {
+        if(blockNum < 0 || blockNum > MAX_NODE){
+            throw new ArrayIndexOutOfBoundsException();
+        }
     }
     
     // CheckIntegrity implements a modified Merkle Tree (source: Wikipedia.com)
     // If the integrity of the storage is maintained it returns true and
-    // returns false if it has been tampered.
+    // returns false if it has been tampered.  The walk up the tree stops at
+    // the first node whose hash is in the verified cache, and every hash
+    // checked on the way is then added to the cache.  A node written since
+    // the last flush (see deferred hashing below) is checked against the
+    // digests kept for it in memory instead, and also ends the walk.  A node
+    // that isn't allocated has an all-zero hash and isn't read at all.  The
+    // raw block of <blockNum> itself is left in the scratch target buffer.
+    // Every node on the path is locked shared until the walk is over, so
+    // no writer can change the path while it is being checked.
     private boolean checkIntegrity(int blockNum) throws DataIntegrityException{
-        byte[] key = new byte[KEY_BYTES]; //FIXED KEY 0
-        byte[] value = new byte[blockSize()];
-        byte[] hashLeft = new byte[HASH_BYTES];
-        byte[] hashRight = new byte[HASH_BYTES];
-        
-        byte[] oldHash = new byte[HASH_BYTES];
-        byte[] calculatedHash = new byte[HASH_BYTES];
-
-        //CHECK SUPERBLOCK's HASH is SAME as the FIRST HASH and return true if it is
-        if(blockNum==-1){
-            dev.readBlock(0, oldHash, 0, blockSize(), HASH_BYTES);
-            dev.readSuperBlock(calculatedHash, 0, superBlockSize(), HASH_BYTES);
-            if (Arrays.equals(oldHash,calculatedHash))
-                return true;
-            else
-                return false;
+        Scratch sc = scratch();
+        int pathLength = 0;
+        int locked = 0;
+        int depth = depth(blockNum);
+
+        try {
+            //Walk up the tree.  <hash> is the hash of the node we came from,
+            //which has to match its slot in the current node
+            byte[] hash = null;
+            int child = -1;
+            for(int n=blockNum; ; child=n, n=parent(n), depth--){
+                //CHECK SUPERBLOCK's HASH is SAME as the ROOT's HASH
+                if(n==-1){
+                    readSuper(sc.meta, 0, rootOffset(), HASH_BYTES);
+                    if (!equalAt(hash, 0, sc.meta, 0, HASH_BYTES))
+                        return false;
+                    break;
+                }
+
+                sc.pathLocks[locked] = nodeLock(n, depth).readLock();
+                sc.pathLocks[locked++].lock();
+                if (!isAllocated(n)){
+                    hash = ZERO_HASH;
+                    continue;
+                }
+
+                //READ THE NODE AND CHECK THE SLOT OF THE NODE BELOW.  In the
+                //hash-only layout only the accessed block's value is needed,
+                //or a pending node's.
+                byte[] pending = pendingDigests(n);
+                if (!hashOnly || n==blockNum || pending != null){
+                    byte[] raw = (n==blockNum) ? sc.target : sc.raw;
+                    readNode(n, raw, 0, 0, dev.blockSize());
+                    System.arraycopy(raw, 0, sc.value, 0, blockSize());
+                    System.arraycopy(raw, blockSize(), sc.meta, 0, metaBytes());
+                }else{
+                    readNode(n, sc.meta, 0, blockSize(), metaBytes());
+                }
+                if (child != -1 && !slotMatches(sc.meta, child, hash))
+                    return false;
+                if (pending != null){
+                    if (!matchesPending(pending, sc.value, sc.meta))
+                        return false;
+                    break;
+                }
+
+                //CHECK THE DIGEST OF THE VALUE, THEN CALCULATE THE HASH AGAIN
+                if (hashOnly && n==blockNum && 
+                    !equalAt(valueDigest(sc.value), 0, sc.meta, 0, HASH_BYTES))
+                    return false;
+                hash = nodeHash(sc.value, sc.meta);
+
+                //A TRUSTED HASH ENDS THE WALK; OTHERWISE MOVE ON TO THE PARENT
+                //(until reaching superblock)
+                byte[] trusted = cachedHash(n);
+                if (trusted != null){
+                    if (!Arrays.equals(trusted,hash))
+                        return false;
+                    break;
+                }
+                sc.pathNodes[pathLength] = n;
+                sc.pathHashes[pathLength] = hash;
+                pathLength++;
+            }
+            for(int i=0; i<pathLength; i++){
+                cacheHash(sc.pathNodes[i], sc.pathHashes[i]);
+            }
+            return true;
+        } finally {
+            for(int i=0; i<pathLength; i++){
+                sc.pathHashes[i] = null;
+            }
+            while(locked > 0){
+                sc.pathLocks[--locked].unlock();
+                sc.pathLocks[locked] = null;
+            }
         }
-            
-        //Adjust index for tree traversal
-        blockNum=blockNum+1;
-        
-        //If block is empty, integrity depends on the node's parent
-        if (blockIsEmpty(blockNum-1))
-            return checkIntegrity((blockNum/2)-1); 
-        
-        //READ VALUE OF NODE, HASH OF CHILDREN AND HASH OF NODE
-        dev.readBlock(blockNum-1, value, 0, 0, blockSize());
-        dev.readBlock(blockNum-1, oldHash, 0, blockSize(), HASH_BYTES);
-        dev.readBlock(2*blockNum-1, hashLeft, 0, blockSize(), HASH_BYTES);
-        dev.readBlock(2*blockNum, hashRight, 0, blockSize(), HASH_BYTES);
-        
-        //CALCULATE THE HASH AGAIN
-        PRF prf = new PRF(key);
-        prf.update(hashLeft);
-        prf.update(hashRight);
-        calculatedHash=prf.eval(value);
-        
-        //COMPARE HASHES. IF DIFFERENT THEN RETURN FALSE, OTHERWISE RETURN
-        //INTEGRITY OF PARENT RECURSIVELY (until reaching superblock)
-        if (Arrays.equals(oldHash,calculatedHash))
-            return checkIntegrity(blockNum/2-1);
-        else{
-            //System.out.println("Integrity Error in blockNum" + blockNum-1);
-            return false;
+    }
+
+    // Hash of a node, given its value and its meta record (the part of the
+    // device block after the value: the digest, in the hash-only layout,
+    // then the child hash slots).  It is PRF (fixed key 0) of the meta
+    // record followed by the value, or of the meta record alone in the
+    // hash-only layout.  Only allocated nodes are hashed this way.
+    private byte[] nodeHash(byte[] value, byte[] meta) {
+        PRF prf = hashPrf.get();
+        if (hashOnly)
+            return prf.eval(meta);
+        prf.update(meta);
+        return prf.eval(value);
+    }
+
+    // Digest of a block's value, for the hash-only layout.  An all-zero
+    // value has an all-zero digest, which is what the meta record of a node
+    // that was never written holds.
+    private byte[] valueDigest(byte[] value) {
+        for(int i=0; i<value.length; i++){
+            if (value[i] != 0)
+                return hashPrf.get().eval(value);
         }
+        return ZERO_HASH;
+    }
+
+    // Size of the meta record that follows the value in each device block.
+    private int metaBytes() {
+        return (hashOnly ? HASH_BYTES : 0) + arity*HASH_BYTES;
+    }
+
+    // Offset, within its parent's meta record, of the slot holding the hash
+    // of node <blockNum>.
+    private int slotOffset(int blockNum) {
+        return (hashOnly ? HASH_BYTES : 0) + ((blockNum-1)%arity)*HASH_BYTES;
+    }
+
+    private boolean slotMatches(byte[] parentMeta, int blockNum, byte[] hash) {
+        return equalAt(parentMeta, slotOffset(blockNum), hash, 0, HASH_BYTES);
     }
     
-    // Updates the "Merkle Tree" after writing with new hashes
-    private void updateHash(int blockNum) throws DataIntegrityException{
-        byte[] key = new byte[KEY_BYTES];
-        byte[] value = new byte[blockSize()];
-        byte[] hashLeft = new byte[HASH_BYTES];
-        byte[] hashRight = new byte[HASH_BYTES];
-        
-        byte[] hash = new byte[HASH_BYTES];
+    // Index of the parent of a node (-1 for the root).
+    private int parent(int blockNum) {
+        return (blockNum==0) ? -1 : (blockNum-1)/arity;
+    }
+
+    // Where the arity, the root hash and the key sit in the device
+    // superblock.
+    private int formatOffset() {    return superBlockSize();    }
+    private int pageCountOffset() {    return formatOffset()+FORMAT_BYTES;    }
+    private int rootOffset() {
+        return pageCountOffset()+PAGE_COUNT_BYTES+HASH_BYTES;
+    }
+    private int keyOffset() {    return rootOffset()+HASH_BYTES;    }
+
+    // Deferred hashing: a write only marks the block and its ancestors
+    // dirty, and flushHashes() later rehashes every dirty node once,
+    // deepest first, and publishes the root.  Writes close together in the
+    // tree then share the rehashing of their common ancestors.  A flush
+    // happens when flushHashes() is called (ServerContext does so on its
+    // timer), or once dirtyThreshold nodes are dirty.
+    //
+    // While a node is dirty the tree on the device doesn't cover it, so
+    // each written block gets pending digests, kept in memory: the digest of
+    // its new value and a hash of its meta record, computed from what was
+    // verified before the write and what was written.  checkIntegrity checks
+    // a pending block against them, and flushHashes checks every dirty node
+    // (pending blocks that way, their ancestors, which haven't changed on
+    // the device, against the old tree) before rehashing anything.  The
+    // rehash takes a pending block's value digest from memory in the
+    // hash-only layout and checks the value against it otherwise, so nothing
+    // changed on the device in the meantime gets into the tree.  With
+    // deferral off, every write is flushed before it returns.
+    private static final int DEFAULT_DIRTY_THRESHOLD = 1024;
+    private boolean deferHashing = false;
+    private int dirtyThreshold = DEFAULT_DIRTY_THRESHOLD;
+    // a child always has a higher number than its parent
+    private final TreeSet<Integer> dirty = 
+        new TreeSet<Integer>(Collections.reverseOrder());
+    // blocks whose value was written, as opposed to ancestors that are only
+    // dirty because of their children, with their pending digests (value
+    // digest, then meta hash).  Guarded by <dirty>.
+    private final Map<Integer, byte[]> dirtyValues = new HashMap<Integer, byte[]>();
 
-        //Write top hash to superblock and return.
-        if(blockNum==-1){
-            dev.readBlock(0, hash, 0, blockSize(), HASH_BYTES);
-            dev.writeSuperBlock(hash, 0, superBlockSize(), HASH_BYTES);
+    public void setDeferredHashing(boolean defer) 
+        throws DataIntegrityException {
+        treeLock.writeLock().lock();
+        try {
+            deferHashing = defer;
+            if(!defer){
+                flushHashes();
+            }
+        } finally {
+            treeLock.writeLock().unlock();
+        }
+    }
+
+    // Flush once at least <nodes> nodes are dirty.
+    public void setDirtyThreshold(int nodes) {
+        synchronized(dirty) {
+            dirtyThreshold = nodes;
+        }
+    }
+
+    public int dirtyNodes() {
+        synchronized(dirty) {
+            return dirty.size();
+        }
+    }
+
+    // Pending digests of a block written since the last flush, or null.
+    private byte[] pendingDigests(int blockNum) {
+        synchronized(dirty) {
+            return dirtyValues.get(blockNum);
+        }
+    }
+
+    // Pending digests for a raw device block image.
+    private byte[] pendingDigests(byte[] image) {
+        Scratch sc = scratch();
+        System.arraycopy(image, 0, sc.value, 0, blockSize());
+        System.arraycopy(image, blockSize(), sc.meta, 0, metaBytes());
+        byte[] pending = new byte[2*HASH_BYTES];
+        System.arraycopy(valueDigest(sc.value), 0, pending, 0, HASH_BYTES);
+        System.arraycopy(hashPrf.get().eval(sc.meta), 0, pending, HASH_BYTES, 
+            HASH_BYTES);
+        return pending;
+    }
+
+    private boolean matchesPending(byte[] pending, byte[] value, byte[] meta) {
+        return equalAt(valueDigest(value), 0, pending, 0, HASH_BYTES) &&
+            equalAt(hashPrf.get().eval(meta), 0, pending, HASH_BYTES, HASH_BYTES);
+    }
+
+    // Fill in what checkIntegrity didn't read of the image of a block about
+    // to be written: a block that isn't allocated is written whole, so only
+    // its meta record is needed.
+    private byte[] targetImage(int blockNum, byte[] image) 
+        throws DataIntegrityException {
+        if (!isAllocated(blockNum))
+            readNode(blockNum, image, blockSize(), blockSize(), metaBytes());
+        return image;
+    }
+
+    // Check every dirty node, then rehash each exactly once, bottom-up, and
+    // publish the new top hash to the superblock.  This has the whole tree
+    // to itself.
+    public void flushHashes() throws DataIntegrityException {
+        if(dirtyNodes() == 0){
             return;
         }
-            
-        //Adjust index for tree traversal
-        blockNum=blockNum+1;
-        
-        //Get value of node and hashes of children
-        dev.readBlock(blockNum-1, value, 0, 0, blockSize());
-        dev.readBlock(2*blockNum-1, hashLeft, 0, blockSize(), HASH_BYTES);
-        dev.readBlock(2*blockNum, hashRight, 0, blockSize(), HASH_BYTES);
-        
-        //Hash all of these values
-        PRF prf = new PRF(key);
-        prf.update(hashLeft);
-        prf.update(hashRight);
-        hash=prf.eval(value);
+        treeLock.writeLock().lock();
+        try {
+            synchronized(dirty) {
+                for(int n : dirty){
+                    if(!checkIntegrity(n)){
+                        throw new DataIntegrityException();
+                    }
+                }
+                Set<Integer> allocatedNow = new HashSet<Integer>();
+                for(int n : dirty){
+                    if(allocateNode(n)){
+                        allocatedNow.add(n);
+                    }
+                }
+                for(int n : dirty){
+                    byte[] pending = dirtyValues.get(n);
+                    rehashNode(n, pending != null || allocatedNow.contains(n), 
+                        pending);
+                }
+                writeBitmap();
+                dirty.clear();
+                dirtyValues.clear();
+            }
+        } finally {
+            treeLock.writeLock().unlock();
+        }
+    }
+
+    // Flush if deferred hashing has let too many nodes go dirty.  Called
+    // with no locks held.
+    private void flushIfOverThreshold() throws DataIntegrityException {
+        boolean over;
+        synchronized(dirty) {
+            over = dirty.size() >= dirtyThreshold;
+        }
+        if(over){
+            flushHashes();
+        }
+    }
+
+    // Deferred hashing: mark the given blocks, which were just written, and
+    // all their ancestors dirty, and keep the written blocks' pending
+    // digests.  Ancestors are only allocated once flushed, so that until
+    // then they still match the tree on the device.
+    private void markDirty(Map<Integer, byte[]> pending) {
+        synchronized(dirty) {
+            for(Map.Entry<Integer, byte[]> e : pending.entrySet()){
+                int blockNum = e.getKey();
+                dirtyValues.put(blockNum, e.getValue());
+                uncacheHash(blockNum);
+                for(int n=blockNum; n!=-1 && dirty.add(n); n=parent(n)){
+                    uncacheHash(n);
+                }
+            }
+        }
+    }
+
+    // Updates the "Merkle Tree" after writing <blockNum>, whose lock the
+    // caller holds exclusively: rehash its path up to the root, hand over
+    // hand, holding each node's lock and its parent's while the node's hash
+    // goes into the parent.  Writers elsewhere in the tree only wait here
+    // once their paths join ours.
+    private void rehashPath(int blockNum) throws DataIntegrityException {
+        int depth = depth(blockNum);
+        Lock mine = null;
+        Lock up = null;
+        try {
+            boolean valueChanged = true;
+            for(int n=blockNum; n!=-1; n=parent(n), depth--){
+                boolean parentAllocated = false;
+                if (n != 0){
+                    up = nodeLock(parent(n), depth-1).writeLock();
+                    up.lock();
+                    parentAllocated = allocateNode(parent(n));
+                }
+                rehashNode(n, valueChanged, null);
+                valueChanged = parentAllocated;
+                if (mine != null)
+                    mine.unlock();
+                mine = up;
+                up = null;
+            }
+            writeBitmap();
+        } finally {
+            if (up != null)
+                up.unlock();
+            if (mine != null)
+                mine.unlock();
+        }
+    }
+
+    // Same for several written blocks, whose paths the caller holds locked
+    // exclusively: every node on the union of the paths is rehashed once,
+    // deepest first.
+    private void rehashPaths(Set<Integer> blockNums) 
+        throws DataIntegrityException {
+        TreeSet<Integer> union = 
+            new TreeSet<Integer>(Collections.reverseOrder());
+        Set<Integer> changed = new HashSet<Integer>(blockNums);
+        for(int blockNum : blockNums){
+            for(int n=blockNum; n!=-1 && union.add(n); n=parent(n)){
+                if(allocateNode(n)){
+                    changed.add(n);
+                }
+            }
+        }
+        for(int n : union){
+            rehashNode(n, changed.contains(n), null);
+        }
+        writeBitmap();
+    }
+
+    // Recompute the hash of one node from its value and its child slots, and
+    // store it in its parent's slot, or in the superblock for the root.  In
+    // the hash-only layout the value is only read, to update the digest, if
+    // <valueChanged>.  If the block has <pending> digests, its value digest
+    // comes from them instead, or in the classic layout the value must
+    // match it.  The path being rehashed was just verified, so the new hash
+    // is trusted and goes into the cache.
+    private void rehashNode(int blockNum, boolean valueChanged, byte[] pending) 
+        throws DataIntegrityException{
+        Scratch sc = scratch();
+        byte[] value = null;
+        byte[] meta = sc.meta;
+        readNode(blockNum, meta, 0, blockSize(), metaBytes());
+        if (!hashOnly || (valueChanged && pending == null)){
+            value = sc.value;
+            readNode(blockNum, value, 0, 0, blockSize());
+            if (pending != null && !equalAt(valueDigest(value), 0, pending, 0, 
+                HASH_BYTES))
+                throw new DataIntegrityException();
+        }
+        if (hashOnly && valueChanged){
+            byte[] digest = (pending != null) ? 
+                Arrays.copyOf(pending, HASH_BYTES) : valueDigest(value);
+            System.arraycopy(digest, 0, meta, 0, HASH_BYTES);
+            writeNode(blockNum, digest, 0, blockSize(), HASH_BYTES);
+        }
+        byte[] hash = nodeHash(value, meta);
         
-        //Write it to node and recursively call to parent node until reaching the
-        //SuperBlock (blockNum=-1).
-        dev.writeBlock(blockNum-1, hash, 0, blockSize(), HASH_BYTES);
-        updateHash(blockNum/2-1);
+        //Write it to the parent
+        if (blockNum == 0)
+            writeSuper(hash, 0, rootOffset(), HASH_BYTES);
+        else
+            writeNode(parent(blockNum), hash, 0, 
+                blockSize()+slotOffset(blockNum), HASH_BYTES);
+        cacheHash(blockNum, hash);
     }
     
     public BlockStoreAuthEnc(BlockStore underStore, PRGen thePrg) 
     throws DataIntegrityException {
+        this(underStore, thePrg, DEFAULT_ARITY, false);
+    }
+
+    public BlockStoreAuthEnc(BlockStore underStore, PRGen thePrg, int theArity) 
+    throws DataIntegrityException {
+        this(underStore, thePrg, theArity, false);
+    }
+
+    // <theArity> and <theHashOnly> are used if the store has never been
+    // formatted with an arity; otherwise what is recorded in the store wins.
+    public BlockStoreAuthEnc(BlockStore underStore, PRGen thePrg, int theArity,
+        boolean theHashOnly) throws DataIntegrityException {
+        checkArity(underStore, theArity, theHashOnly);
         dev = underStore;
         prg = thePrg; 
+        for(int d=0; d<LOCK_DEPTHS; d++){
+            for(int i=0; i<LOCK_STRIPES; i++){
+                nodeLocks[d][i] = new ReentrantReadWriteLock();
+            }
+        }
         key = new byte[32];
         byte[] empty = new byte[KEY_BYTES];
+
+        // Read the tree format; zero means the store was never formatted
+        // with one.
+        byte[] formatBytes = new byte[FORMAT_BYTES];
+        readSuper(formatBytes, 0, formatOffset(), FORMAT_BYTES);
+        int treeFormat = ByteBuffer.wrap(formatBytes).getInt();
+        if(treeFormat == 0){
+            arity = theArity;
+            hashOnly = theHashOnly;
+            writeTreeFormat();
+        }else{
+            arity = treeFormat & ~HASH_ONLY_FLAG;
+            hashOnly = (treeFormat & HASH_ONLY_FLAG) != 0;
+            checkArity(dev, arity, hashOnly);
+        }
         
         // Read SuperBlock for key. If key does not exist, create new one and
         // store it in the superBlock.
-        dev.readSuperBlock(key, 0, superBlockSize()+HASH_BYTES, KEY_BYTES);
+        readSuper(key, 0, keyOffset(), KEY_BYTES);
         if(Arrays.equals(key, empty)){
            for(int i = 0; i < KEY_BYTES; i++) {
                key[i] = (byte) prg.next(8);
            }
-           dev.writeSuperBlock(key, 0, superBlockSize()+HASH_BYTES, KEY_BYTES);
+           writeSuper(key, 0, keyOffset(), KEY_BYTES);
+        }
+
+        readBitmap();
+    }
+
+    private static void checkArity(BlockStore dev, int arity, 
+        boolean hashOnly) {
+        int slots = hashOnly ? arity+1 : arity;
+        if(arity < 2 || arity > MAX_ARITY || 
+            slots*HASH_BYTES >= dev.blockSize()){
+            throw new IllegalArgumentException();
+        }
+    }
+
+    private void writeTreeFormat() throws DataIntegrityException {
+        byte[] formatBytes = new byte[FORMAT_BYTES];
+        ByteBuffer.wrap(formatBytes).putInt(arity | 
+            (hashOnly ? HASH_ONLY_FLAG : 0));
+        writeSuper(formatBytes, 0, formatOffset(), FORMAT_BYTES);
+    }
+
+    public int arity() {
+        return arity;
+    }
+
+    public boolean hashOnly() {
+        return hashOnly;
+    }
+
+    // Format with a new arity (and layout).  This changes blockSize(), so
+    // stores layered on top of this one must be created after it.
+    public void format(int newArity) throws DataIntegrityException {
+        format(newArity, false);
+    }
+
+    public void format(int newArity, boolean newHashOnly) 
+        throws DataIntegrityException {
+        checkArity(dev, newArity, newHashOnly);
+        treeLock.writeLock().lock();
+        try {
+            arity = newArity;
+            hashOnly = newHashOnly;
+            format();
+        } finally {
+            treeLock.writeLock().unlock();
         }
     }
 
     public void format() throws DataIntegrityException { 
-        dev.format();
+        treeLock.writeLock().lock();
+        try {
+            synchronized(verified) {
+                verified.clear();
+            }
+            synchronized(dirty) {
+                dirty.clear();
+                dirtyValues.clear();
+            }
+            synchronized(allocated) {
+                allocated.clear();
+                dirtyPages.clear();
+                pageDigests.clear();
+            }
+            dev.format();
+            // keep the key and tree format, so that another instance opened
+            // on this store later can still read what is written from now on
+            writeSuper(key, 0, keyOffset(), KEY_BYTES);
+            writeTreeFormat();
+        } finally {
+            treeLock.writeLock().unlock();
+        }
     }
 
-    // Return free size of Block by substracting the HASH_BYTES
+    // Return free size of Block by substracting the meta record
     public int blockSize() {
-        return dev.blockSize()-HASH_BYTES;
+        return dev.blockSize()-metaBytes();
     }
 
-    // Return free size of SuperBlock by substracting the HASH_BYTES and KEY_BYTES
+    // Return free size of SuperBlock by substracting the tree format, the
+    // bitmap page count and digest, HASH_BYTES and KEY_BYTES
     public int superBlockSize() {
-        return dev.superBlockSize()-HASH_BYTES-KEY_BYTES;
+        return dev.superBlockSize()-FORMAT_BYTES-PAGE_COUNT_BYTES-HASH_BYTES
+            -HASH_BYTES-KEY_BYTES;
     }
 
     // Read SuperBlock by checking range of reading operation and calling
@@ -147,7 +977,7 @@ public class BlockStoreAuthEnc implements BlockStore {
         if(blockOffset+nbytes > superBlockSize()){
             throw new ArrayIndexOutOfBoundsException();
         }
-        dev.readSuperBlock(buf, bufOffset, blockOffset, nbytes);
+        readSuper(buf, bufOffset, blockOffset, nbytes);
     }
 
     // Write SuperBlock by checking range of writing operation and calling
@@ -157,68 +987,379 @@ public class BlockStoreAuthEnc implements BlockStore {
         if(blockOffset+nbytes > superBlockSize()){
             throw new ArrayIndexOutOfBoundsException();
         }
-        dev.writeSuperBlock(buf, bufOffset, blockOffset, nbytes);
+        writeSuper(buf, bufOffset, blockOffset, nbytes);
     }
 
     // Read Block checking bounds and integrity, and performing decryption.
     public void readBlock(int blockNum, byte[] buf, int bufOffset, 
         int blockOffset, int nbytes) throws DataIntegrityException {
-        //Integrity Check
-        if(!checkIntegrity(blockNum)){
-            throw new DataIntegrityException();
-        }
-        //Bound check
-        if(blockOffset+nbytes > blockSize()){
-            throw new ArrayIndexOutOfBoundsException();
-        }
-        
-        byte[] encBuf = new byte[blockSize()];
-        byte[] decBuf = new byte[blockSize()];
-
-        //Read Block
-        dev.readBlock(blockNum, encBuf, 0, 0, blockSize());
-        // Cipher the block with nonce equal to blockNum
-        byte[] nonce = new byte[8];
-        LongUtils.longToBytes((long) blockNum, nonce, 0);
-        StreamCipher cipher = new StreamCipher(key, nonce, 0);
-        cipher.cryptBytes(encBuf, 0, decBuf, 0, blockSize());
-        // Copy the required decrypted part onto the output array (buf)
-        System.arraycopy(decBuf, blockOffset, buf, bufOffset, nbytes);
+        readBlock(blockNum, ByteBuffer.wrap(buf, bufOffset, nbytes), blockOffset);
     }
 
     // Write to Block checking bounds and integrity, and performing encryption.
     public void writeBlock(int blockNum, byte[] buf, int bufOffset, 
         int blockOffset, int nbytes) throws DataIntegrityException {
-        //Integrity Check
-        if(!checkIntegrity(blockNum)){
-            throw new DataIntegrityException();
+        writeBlock(blockNum, ByteBuffer.wrap(buf, bufOffset, nbytes), 
+            blockOffset);
+    }
+
+    // ByteBuffer read: the decrypted bytes go straight into dst.  The
+    // block stays locked shared from the integrity check to the decrypt.
+    public void readBlock(int blockNum, ByteBuffer dst, int blockOffset) 
+        throws DataIntegrityException {
+        checkBlockNum(blockNum);
+        //Bound check
+        if(blockOffset+dst.remaining() > blockSize()){
+            throw new ArrayIndexOutOfBoundsException();
         }
+        treeLock.readLock().lock();
+        Lock lock = nodeLock(blockNum, depth(blockNum)).readLock();
+        lock.lock();
+        try {
+            //Integrity Check (a block that was never written is just zeroes)
+            if(isAllocated(blockNum) && !checkIntegrity(blockNum)){
+                throw new DataIntegrityException();
+            }
+            decryptBlock(blockNum, dst, blockOffset);
+        } finally {
+            lock.unlock();
+            treeLock.readLock().unlock();
+        }
+    }
+
+    // ByteBuffer write: src is encrypted in place of a staging copy, and the
+    // ciphertext is handed to the device as a buffer.  The block stays
+    // locked exclusively until it has been rehashed (and read back).
+    public void writeBlock(int blockNum, ByteBuffer src, int blockOffset) 
+        throws DataIntegrityException {
+        int nbytes = src.remaining();
+        checkBlockNum(blockNum);
         //Bound Check
         if(blockOffset+nbytes > blockSize()){
             throw new ArrayIndexOutOfBoundsException();
         }
-        
-        byte[] encBuf = new byte[blockSize()];
-        byte[] zerBuf = new byte[blockSize()];
-
-        //Create StreamCipher with nonce equal to blockNum
-        byte[] nonce = new byte[8];
-        LongUtils.longToBytes((long) blockNum, nonce, 0);
-        StreamCipher cipher = new StreamCipher(key, nonce, 0);
-        //Copy buf from buffOffset to buffOffset+nbytes-1 onto zerBuf and encrypt
-        System.arraycopy(buf, bufOffset, zerBuf, blockOffset, nbytes);
-        cipher.cryptBytes(zerBuf, 0, encBuf, 0, blockSize());
-        //Write the required part onto the block
-        dev.writeBlock(blockNum, encBuf, blockOffset, blockOffset, nbytes);
-        //Update Integrity
-        updateHash(blockNum);
-
-        byte[] reader = new byte[nbytes];
-        byte[] compar = new byte[nbytes];
-        System.arraycopy(buf, bufOffset, compar, 0, nbytes);
-        readBlock(blockNum, reader, 0, blockOffset, nbytes);
-        if (!Arrays.equals(reader, compar)) {
-            throw new DataIntegrityException();
-        }
-    }
-}
\ No newline at end of file
+        boolean deferred;
+        treeLock.readLock().lock();
+        Lock lock = nodeLock(blockNum, depth(blockNum)).writeLock();
+        lock.lock();
+        try {
+            deferred = deferHashing;
+            //Integrity Check
+            if(!checkIntegrity(blockNum)){
+                throw new DataIntegrityException();
+            }
+            
+            Scratch sc = scratch();
+            int position = src.position();
+            src.get(sc.compar, 0, nbytes);
+            src.position(position);
+            byte[] image = deferred ? targetImage(blockNum, sc.target) : null;
+            encryptBlock(blockNum, src, blockOffset, image);
+            //Update Integrity
+            if(deferred)
+                markDirty(Collections.singletonMap(blockNum, 
+                    pendingDigests(image)));
+            else
+                rehashPath(blockNum);
+
+            if(shouldVerifyWrite()){
+                if(!checkIntegrity(blockNum)){
+                    throw new DataIntegrityException();
+                }
+                decryptBlock(blockNum, ByteBuffer.wrap(sc.reader, 0, nbytes), 
+                    blockOffset);
+                if (!equalAt(sc.reader, 0, sc.compar, 0, nbytes)) {
+                    throw new DataIntegrityException();
+                }
+            }
+        } finally {
+            lock.unlock();
+            treeLock.readLock().unlock();
+        }
+        if(deferred){
+            flushIfOverThreshold();
+        }
+    }
+
+    // Publish the tree, then sync the device.
+    public void sync() throws DataIntegrityException {
+        flushHashes();
+        dev.sync();
+    }
+
+    // Give back a node, which then reads as zeroes: it is marked
+    // unallocated, its slot in its parent is zeroed and the path above
+    // rehashed, and the device is told it can drop the block.  A node with
+    // allocated children holds their hashes and is kept as it is, so a
+    // subtree is released by trimming it deepest first.  This has the
+    // whole tree to itself.
+    public void trimBlock(int blockNum) throws DataIntegrityException {
+        checkBlockNum(blockNum);
+        treeLock.writeLock().lock();
+        try {
+            if(!isAllocated(blockNum)){
+                return;
+            }
+            for(int i=1; i<=arity; i++){
+                long child = (long) arity*blockNum + i;
+                if(child <= MAX_NODE && isAllocated((int) child)){
+                    return;
+                }
+            }
+            flushHashes();
+            if(!checkIntegrity(blockNum)){
+                throw new DataIntegrityException();
+            }
+            clearAllocated(blockNum);
+            uncacheHash(blockNum);
+            int parent = parent(blockNum);
+            if(parent == -1){
+                writeSuper(ZERO_HASH, 0, rootOffset(), HASH_BYTES);
+            }else{
+                writeNode(parent, ZERO_HASH, 0, 
+                    blockSize()+slotOffset(blockNum), HASH_BYTES);
+                for(int n=parent; n!=-1; n=parent(n)){
+                    rehashNode(n, false, null);
+                }
+            }
+            writeBitmap();
+            dev.trimBlock(2*blockNum);
+        } finally {
+            treeLock.writeLock().unlock();
+        }
+    }
+
+    // Vectored read: each distinct block is verified once, however many
+    // ranges touch it.  The paths of all the blocks are locked shared for
+    // the whole call.
+    public void readBlocks(List<BlockRange> ranges) 
+        throws DataIntegrityException {
+        Set<Integer> blocks = new HashSet<Integer>();
+        for(BlockRange r : ranges){
+            checkBlockNum(r.blockNum);
+            if(r.blockOffset+r.nbytes > blockSize()){
+                throw new ArrayIndexOutOfBoundsException();
+            }
+            blocks.add(r.blockNum);
+        }
+        treeLock.readLock().lock();
+        List<Lock> locks = lockPaths(blocks, false);
+        try {
+            for(int blockNum : blocks){
+                if(isAllocated(blockNum) && !checkIntegrity(blockNum)){
+                    throw new DataIntegrityException();
+                }
+            }
+            for(BlockRange r : ranges){
+                decryptBlock(r.blockNum, 
+                    ByteBuffer.wrap(r.buf, r.bufOffset, r.nbytes), r.blockOffset);
+            }
+        } finally {
+            unlockAll(locks);
+            treeLock.readLock().unlock();
+        }
+    }
+
+    // Vectored write: each distinct block is verified once, all the data is
+    // written, and then every node on the union of the paths to the root is
+    // rehashed exactly once, deepest first, so blocks that share ancestors
+    // share the work of rehashing them.  The union is locked exclusively
+    // for the whole call.
+    public void writeBlocks(List<BlockRange> ranges) 
+        throws DataIntegrityException {
+        Set<Integer> written = new HashSet<Integer>();
+        for(BlockRange r : ranges){
+            checkBlockNum(r.blockNum);
+            if(r.blockOffset+r.nbytes > blockSize()){
+                throw new ArrayIndexOutOfBoundsException();
+            }
+            written.add(r.blockNum);
+        }
+        boolean deferred;
+        treeLock.readLock().lock();
+        List<Lock> locks = lockPaths(written, true);
+        try {
+            deferred = deferHashing;
+            Map<Integer, byte[]> images = new HashMap<Integer, byte[]>();
+            for(int blockNum : written){
+                if(!checkIntegrity(blockNum)){
+                    throw new DataIntegrityException();
+                }
+                if(deferred)
+                    images.put(blockNum, 
+                        targetImage(blockNum, scratch().target.clone()));
+            }
+            for(BlockRange r : ranges){
+                encryptBlock(r.blockNum, 
+                    ByteBuffer.wrap(r.buf, r.bufOffset, r.nbytes), r.blockOffset,
+                    images.get(r.blockNum));
+            }
+
+            if(deferred){
+                Map<Integer, byte[]> pending = new HashMap<Integer, byte[]>();
+                for(Map.Entry<Integer, byte[]> e : images.entrySet()){
+                    pending.put(e.getKey(), pendingDigests(e.getValue()));
+                }
+                markDirty(pending);
+            }else{
+                rehashPaths(written);
+            }
+
+            if(shouldVerifyWrite()){
+                verifyWrites(ranges, written);
+            }
+        } finally {
+            unlockAll(locks);
+            treeLock.readLock().unlock();
+        }
+        if(deferred){
+            flushIfOverThreshold();
+        }
+    }
+
+    // Read everything back after a vectored write; later ranges win where
+    // writes overlap, so compare against the final contents of each block.
+    private void verifyWrites(List<BlockRange> ranges, Set<Integer> written)
+        throws DataIntegrityException {
+        for(int blockNum : written){
+            if(!checkIntegrity(blockNum)){
+                throw new DataIntegrityException();
+            }
+        }
+        Map<Integer, byte[]> expected = new HashMap<Integer, byte[]>();
+        for(BlockRange r : ranges){
+            byte[] image = expected.get(r.blockNum);
+            if(image == null){
+                image = new byte[blockSize()];
+                expected.put(r.blockNum, image);
+            }
+            System.arraycopy(r.buf, r.bufOffset, image, r.blockOffset, r.nbytes);
+        }
+        for(BlockRange r : ranges){
+            byte[] reader = new byte[r.nbytes];
+            decryptBlock(r.blockNum, ByteBuffer.wrap(reader), r.blockOffset);
+            byte[] image = expected.get(r.blockNum);
+            for(int i=0; i<r.nbytes; ++i){
+                if(reader[i] != image[r.blockOffset+i]){
+                    throw new DataIntegrityException();
+                }
+            }
+        }
+    }
+
+    // The following are for IntegrityScrubber, which checks the whole tree
+    // in one pass instead of walking a path per block.
+
+    // Raw device block of a node.
+    byte[] readRawNode(int blockNum) throws DataIntegrityException {
+        byte[] raw = new byte[dev.blockSize()];
+        readNode(blockNum, raw, 0, 0, dev.blockSize());
+        return raw;
+    }
+
+    // Hash of a node, from its raw device block.
+    byte[] hashOfRawNode(byte[] raw) {
+        return nodeHash(Arrays.copyOf(raw, blockSize()), 
+            Arrays.copyOfRange(raw, blockSize(), dev.blockSize()));
+    }
+
+    // Whether a raw block's value matches its digest (always true in the
+    // classic layout, where the value is covered by the node hash).
+    boolean digestMatches(byte[] raw) {
+        if (!hashOnly)
+            return true;
+        byte[] value = Arrays.copyOf(raw, blockSize());
+        return Arrays.equals(valueDigest(value), 
+            Arrays.copyOfRange(raw, blockSize(), blockSize()+HASH_BYTES));
+    }
+
+    // The hash stored in a raw block for its child <childNum>.
+    byte[] childSlot(byte[] raw, int childNum) {
+        int off = blockSize()+slotOffset(childNum);
+        return Arrays.copyOfRange(raw, off, off+HASH_BYTES);
+    }
+
+    byte[] storedRootHash() throws DataIntegrityException {
+        byte[] hash = new byte[HASH_BYTES];
+        readSuper(hash, 0, rootOffset(), HASH_BYTES);
+        return hash;
+    }
+
+    // Full path check of one block, for confirming a suspected corruption.
+    boolean verifyBlock(int blockNum) throws DataIntegrityException {
+        treeLock.readLock().lock();
+        try {
+            return checkIntegrity(blockNum);
+        } finally {
+            treeLock.readLock().unlock();
+        }
+    }
+
+    // Start a block's keystream (nonce equal to blockNum) at <blockOffset>.
+    // The third argument of StreamCipher's constructor is where the nonce
+    // starts in its array, not a keystream position, and StreamCipher can't
+    // seek, so the keystream before <blockOffset> is generated and dropped.
+    // Nothing past the range being crypted is generated.
+    private StreamCipher cipherAt(int blockNum, int blockOffset, Scratch sc) {
+        LongUtils.longToBytes((long) blockNum, sc.nonce, 0);
+        StreamCipher cipher = new StreamCipher(key, sc.nonce, 0);
+        if (blockOffset > 0)
+            cipher.cryptBytes(sc.cipher, 0, sc.cipher, 0, blockOffset);
+        return cipher;
+    }
+
+    // Read bytes (blockOffset) thru (blockOffset+dst.remaining()) of a block
+    // from the device and decrypt them into dst.  Integrity and bounds must
+    // already have been checked.
+    private void decryptBlock(int blockNum, ByteBuffer dst, int blockOffset) 
+        throws DataIntegrityException {
+        int nbytes = dst.remaining();
+        if (!isAllocated(blockNum)){
+            while(dst.hasRemaining()){
+                dst.put((byte) 0);
+            }
+            return;
+        }
+        Scratch sc = scratch();
+        StreamCipher cipher = cipherAt(blockNum, blockOffset, sc);
+
+        //Read just the requested range, and decrypt it straight into dst if
+        //it has an array
+        readNode(blockNum, sc.cipher, 0, blockOffset, nbytes);
+        if (dst.hasArray()){
+            int pos = dst.position();
+            cipher.cryptBytes(sc.cipher, 0, dst.array(), dst.arrayOffset()+pos, 
+                nbytes);
+            dst.position(pos+nbytes);
+        }else{
+            cipher.cryptBytes(sc.cipher, 0, sc.plain, 0, nbytes);
+            dst.put(sc.plain, 0, nbytes);
+        }
+    }
+
+    // Encrypt src and write it to bytes (blockOffset) onward of a block.
+    // Only the bytes being written are encrypted, except on the first write
+    // to a block, where the rest of the block is filled with encrypted
+    // zeroes so that it reads back as zeroes.  The block is marked
+    // allocated, but the Merkle tree is not updated.  The ciphertext is
+    // also copied into <image> (the block's raw image) unless it is null.
+    private void encryptBlock(int blockNum, ByteBuffer src, int blockOffset,
+        byte[] image) throws DataIntegrityException {
+        int nbytes = src.remaining();
+        Scratch sc = scratch();
+        if (!isAllocated(blockNum) && (blockOffset != 0 || nbytes != blockSize())){
+            Arrays.fill(sc.plain, (byte) 0);
+            src.get(sc.plain, blockOffset, nbytes);
+            blockOffset = 0;
+            nbytes = blockSize();
+        }else{
+            src.get(sc.plain, 0, nbytes);
+        }
+        StreamCipher cipher = cipherAt(blockNum, blockOffset, sc);
+        cipher.cryptBytes(sc.plain, 0, sc.cipher, 0, nbytes);
+        if (image != null)
+            System.arraycopy(sc.cipher, 0, image, blockOffset, nbytes);
+        writeNode(blockNum, ByteBuffer.wrap(sc.cipher, 0, nbytes), blockOffset);
+        setAllocated(blockNum);
+    }
+}
@@ -22,34 +22,158 @@
 //     Add a new BlockStore to <bsm>, and return a pointer to it.  The
 //     new BlockStore will not be formatted, so you might want to 
 //     call format on it next.
+//
+//  bsm.setTranslationCacheEntries(int entries);
+//     Each BlockStore remembers up to <entries> (rounded down to a power
+//     of two; 0 turns this off) translations from its block numbers to
+//     blocks of <ws>, so a repeat access needs no pointer-chasing reads.
+//     The memory used is 8 bytes per entry per BlockStore.
+//
+//  bsm.translationHits(), bsm.translationMisses()
+//     How many translations were found in those caches, and how many had
+//     to be looked up in <ws>.
 
+//  BlockStoreMultiplexor bsm = BlockStoreMultiplexor(BlockStore ws, 
+//                                                    boolean radixIndex);
+//     Same, but if <ws> is freshly formatted, BlockStores map their blocks
+//     with the old pointer chain instead of radix index blocks (see below)
+//     unless <radixIndex> is true.  For tests and benchmarks.
+//
+//  bsm.setAllocationChunk(int nblocks);
+//     Reserve blocks of <ws> <nblocks> at a time (64 by default), so that
+//     the superblock of <ws> is written once per chunk instead of once
+//     per allocated block.
+//
+//  bsm.setMaxExtent(int nblocks);
+//     Cap the runs of consecutive blocks of <ws> reserved for one
+//     BlockStore (256 by default; 1 turns extents off).  See below.
+//
+//  bsm.deleteSubStore(int index);
+//     Delete the <index>'th BlockStore.  Its blocks of <ws> are freed for
+//     reuse.  Other BlockStores keep their indexes, and the deleted one
+//     throws IllegalStateException if it is used again.
+//
+//  bsm.compact();
+//     Offline compaction: move every block of <ws> that is in use down
+//     into the lowest block numbers, and trim everything past them, so
+//     that <ws> (and any hash tree it keeps) shrinks.  Nothing else may
+//     use <bsm> or its BlockStores while this runs.
+//
+//  int end = bsm.highWaterMark();
+//     Blocks of <ws> from <end> up have never been handed out.
+//
+//  bsm.close();
+//     Give back the blocks of <ws> that <bsm> has reserved but not handed
+//     out (see below), so that the next BlockStoreMultiplexor on <ws> can
+//     use them.  Call this last, when shutting down.
+//
+//  bsm.upgradeFormat();
+//     Move every BlockStore that still uses the pointer chain over to
+//     radix index blocks.  Data blocks stay where they are.
+//
 // The BlockStores returned by getSubStore and newSubStore behave just
 // like regular BlockStores.  The point of this class is that you start out
 // with one BlockStore, and on top of it you create a structure that can
 // give you as many BlockStores as you want.
+//
+// Each BlockStore has a master block, which holds its superblock and a
+// pointer to its block map.  The block map comes in two formats:
+//  - pointer chain (the original format): every data block ends with 4
+//    pointers, making a 4-ary tree threaded through the data blocks, so
+//    finding block N takes about log4(N) dependent reads.
+//  - radix index: dedicated index blocks hold a pointer per 8 bytes, and
+//    form a radix tree whose leaves point at data blocks.  Block N is
+//    found with one read per level, and one level already covers
+//    hundreds of blocks.  The tree grows a level at the top when needed.
+//    The map pointer in the master block carries the tree's depth in its
+//    upper 32 bits, which also tells the formats apart.
+// Data blocks keep the same size in both formats (the pointer space at
+// the end of a data block is just unused under a radix index), so
+// upgrading a BlockStore only builds an index over its existing data
+// blocks and then switches the map pointer.  New BlockStores use the
+// format recorded in the wrapped superblock, where the tail is:
+//   free list(8) | format(4) | number of BlockStores(8) | 
+//     end of reserved blocks(8)
+//
+// Freed blocks are kept on a free list that lives in the free blocks
+// themselves.  A list block holds the next list block(8), a count(8),
+// and that many free block numbers (8 each).  Block 0 is never free, so
+// a list head of 0 means the list is empty.
+//
+// Each BlockStore allocates from its own extent, a run of consecutive
+// blocks of <ws>, so that BlockStores growing at the same time don't
+// interleave and a BlockStore's consecutive blocks mostly stay
+// consecutive in <ws>.  When a BlockStore's extent is used up it takes a
+// block from the free list if there is one, and otherwise reserves a new
+// extent twice the size of its last one (4 blocks at first, up to the
+// maximum), so a BlockStore that grows fast gets long runs and one that
+// grows slowly ties up little.  Extents live in memory only.  close()
+// gives the unused rest of each one back, pulling the high-water mark
+// down over it if it is the last thing reserved and putting it on the
+// free list otherwise, and does the same with the rest of the current
+// chunk.  After a crash those blocks are skipped instead, until compact()
+// reclaims them.
 
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
 
 import java.io.FileNotFoundException;
 
 
 public class BlockStoreMultiplexor {
-	private static byte[]     masterBlockTemplate = null;
-	private static byte[]     dataBlockTemplate = null;
+	private byte[]            masterBlockTemplate;  // sized for <ws>
+	private byte[]            dataBlockTemplate;
 
 	private BlockStore        wrappedStore;
 	private List<Multiplexed> stores;
 	private int               firstFreeBlock;
+	private int               reservedEnd;    // high-water mark, as persisted
   private int               msbSize = 64;   // size of superblock exposed to multiplexed stores
   private int               mPtrSize = 8;   // size of a block-pointer
   private int               mNumPtrs;       // number of block-pointers in a metablock
   private int               dPtrSize = mPtrSize;  // size of a datablock-pointer
   private int               dNumPtrs = 4;   // number of block-pointers in a data block
   private int               dbSize;
+  private int               iNumPtrs;       // number of block-pointers in an index block
+  private byte[]            indexBlockTemplate;
+
+  private static final int  ChainFormat = 0;
+  private static final int  RadixFormat = 1;
+  private int               formatVersion;
+
+  private static final int  DefaultAllocationChunk = 64;
+  private int               allocationChunk = DefaultAllocationChunk;
+
+  private static final int  MinExtent = 4;
+  private static final int  DefaultMaxExtent = 256;
+  private int               maxExtent = DefaultMaxExtent;
+
+  private static final int  DefaultTranslationEntries = 4096;
+  private int               translationEntries = DefaultTranslationEntries;
+  private final AtomicLong  translationHits = new AtomicLong();
+  private final AtomicLong  translationMisses = new AtomicLong();
+
+  private static final long DeletedMap = -2;   // map pointer of a deleted store
+  private int               freeHead;          // first free list block, or 0
+  private int               freeListCapacity;  // free block numbers per list block
     
   public BlockStoreMultiplexor(BlockStore ws) throws DataIntegrityException {
+    this(ws, true);
+  }
+
+  public BlockStoreMultiplexor(BlockStore ws, boolean radixIndex) 
+  throws DataIntegrityException {
     wrappedStore = ws;
 
     byte[] buf = new byte[16];
@@ -60,56 +184,321 @@ public class BlockStoreMultiplexor {
       stores.add(new Multiplexed(i));
     }
     firstFreeBlock = (int) LongUtils.bytesToLong(buf, 8);
+    reservedEnd = firstFreeBlock;
+    wrappedStore.readSuperBlock(buf, 0, wrappedStore.superBlockSize()-28, 8);
+    freeHead = (int) LongUtils.bytesToLong(buf, 0);
 
     mNumPtrs = (wrappedStore.blockSize()-(msbSize+dPtrSize)) / mPtrSize;
     dbSize = wrappedStore.blockSize()-(dPtrSize*dNumPtrs);
     
     byte[] minusOne = new byte[8];
     LongUtils.longToBytes((long)(-1), minusOne, 0);
-    if(masterBlockTemplate == null){
-      buf = new byte[wrappedStore.blockSize()];
-      for(int i=0; i<mNumPtrs; ++i){
-        for(int j=0; j<8; ++j){
-          buf[i*8+j] = minusOne[j];
-        }
-      }
+    buf = new byte[wrappedStore.blockSize()];
+    for(int i=0; i<mNumPtrs; ++i){
       for(int j=0; j<8; ++j){
-        buf[wrappedStore.blockSize()-(msbSize+dPtrSize)+j] = minusOne[j];
+        buf[i*8+j] = minusOne[j];
       }
-      masterBlockTemplate = buf;
     }
-    if(dataBlockTemplate == null){
-      buf = new byte[wrappedStore.blockSize()];
-      for(int i=0; i<dNumPtrs; ++i){
-        for(int j=0; j<8; ++j){
-          int idx = (wrappedStore.blockSize()-dNumPtrs*dPtrSize)+i*dPtrSize+j;
-          buf[idx] = minusOne[j];
-        }
+    for(int j=0; j<8; ++j){
+      buf[wrappedStore.blockSize()-(msbSize+dPtrSize)+j] = minusOne[j];
+    }
+    masterBlockTemplate = buf;
+    buf = new byte[wrappedStore.blockSize()];
+    for(int i=0; i<dNumPtrs; ++i){
+      for(int j=0; j<8; ++j){
+        int idx = (wrappedStore.blockSize()-dNumPtrs*dPtrSize)+i*dPtrSize+j;
+        buf[idx] = minusOne[j];
       }
-      dataBlockTemplate = buf;
     }
+    dataBlockTemplate = buf;
+
+    iNumPtrs = wrappedStore.blockSize() / dPtrSize;
+    freeListCapacity = (wrappedStore.blockSize() - 16) / 8;
+    indexBlockTemplate = new byte[wrappedStore.blockSize()];
+    Arrays.fill(indexBlockTemplate, (byte) -1);
 
     if(firstFreeBlock == 0){
       wrappedStore.writeBlock(0, masterBlockTemplate, 0, 0, 
         wrappedStore.blockSize());
+      writeFormatVersion(radixIndex ? RadixFormat : ChainFormat);
+    }else{
+      buf = new byte[4];
+      wrappedStore.readSuperBlock(buf, 0, wrappedStore.superBlockSize()-20, 4);
+      formatVersion = ByteBuffer.wrap(buf).getInt();
+    }
+  }
+
+  private void writeFormatVersion(int version) throws DataIntegrityException {
+    byte[] buf = new byte[4];
+    ByteBuffer.wrap(buf).putInt(version);
+    wrappedStore.writeSuperBlock(buf, 0, wrappedStore.superBlockSize()-20, 4);
+    formatVersion = version;
+  }
+
+  // Convert every BlockStore still using the pointer chain to a radix
+  // index, then record that new BlockStores get one too.  Each BlockStore
+  // switches over with a single pointer write, so a crash part way leaves
+  // every BlockStore readable in one format or the other.
+  public synchronized void upgradeFormat() throws DataIntegrityException {
+    for(Multiplexed m : stores){
+      m.migrateToIndex();
+    }
+    if(formatVersion != RadixFormat){
+      writeFormatVersion(RadixFormat);
+    }
+  }
+
+  private void countTranslation(boolean hit) {
+    if(hit){
+      translationHits.incrementAndGet();
+    }else{
+      translationMisses.incrementAndGet();
+    }
+  }
+
+  // Set how many blocks are reserved at a time.
+  public synchronized void setAllocationChunk(int nblocks) {
+    if(nblocks < 1){
+      throw new IllegalArgumentException();
+    }
+    allocationChunk = nblocks;
+  }
+
+  // Set the largest extent a BlockStore reserves at once.
+  public synchronized void setMaxExtent(int nblocks) {
+    if(nblocks < 1){
+      throw new IllegalArgumentException();
     }
+    maxExtent = nblocks;
   }
 
-  private int allocateBlock() throws DataIntegrityException {
+  public synchronized int highWaterMark() {
+    return reservedEnd;
+  }
+
+  // Allocate a block for <owner>'s map or data, or for a master block if
+  // <owner> is null: from <owner>'s extent, else from the free list, else
+  // from a new extent (see the top of the file).
+  private synchronized int allocateBlock(Multiplexed owner) 
+  throws DataIntegrityException {
+    if(owner != null && owner.extentNext < owner.extentEnd){
+      return owner.extentNext++;
+    }
+    if(freeHead != 0){
+      return takeFreeBlock();
+    }
+    if(owner == null){
+      return reserveBlocks(1);
+    }
+    owner.extentSize = Math.min(maxExtent, 
+      (owner.extentSize == 0) ? MinExtent : 2*owner.extentSize);
+    owner.extentNext = reserveBlocks(owner.extentSize);
+    owner.extentEnd = owner.extentNext + owner.extentSize;
+    return owner.extentNext++;
+  }
+
+  // Blocks are handed out from an in-memory range, and only the end of
+  // the range (the high-water mark) is persisted, once per chunk.  After a
+  // crash or restart allocation resumes at the persisted mark, so the
+  // unused tail of the last chunk is skipped, never handed out twice.
+  private int reserveBlocks(int nblocks) throws DataIntegrityException {
+    if(firstFreeBlock + nblocks > reservedEnd){
+      reservedEnd = firstFreeBlock + Math.max(nblocks, allocationChunk);
+      byte[] buf = new byte[8];
+      LongUtils.longToBytes((long)reservedEnd, buf, 0);
+      wrappedStore.writeSuperBlock(buf, 0, wrappedStore.superBlockSize()-8, 8);
+    }
     int ret = firstFreeBlock;
-    ++firstFreeBlock;
+    firstFreeBlock += nblocks;
+    return ret;
+  }
 
+  private void writeFreeHead(int block) throws DataIntegrityException {
     byte[] buf = new byte[8];
-    LongUtils.longToBytes((long)firstFreeBlock, buf, 0);
-    wrappedStore.writeSuperBlock(buf, 0, wrappedStore.superBlockSize()-8, 8);
+    LongUtils.longToBytes((long)block, buf, 0);
+    wrappedStore.writeSuperBlock(buf, 0, wrappedStore.superBlockSize()-28, 8);
+    freeHead = block;
+  }
 
+  // Pop a block off the free list: the last number in the head block, or
+  // the head block itself once it holds none.
+  private int takeFreeBlock() throws DataIntegrityException {
+    byte[] buf = new byte[8];
+    wrappedStore.readBlock(freeHead, buf, 0, 8, 8);
+    int count = (int) LongUtils.bytesToLong(buf, 0);
+    if(count > 0){
+      wrappedStore.readBlock(freeHead, buf, 0, 16+8*(count-1), 8);
+      int ret = (int) LongUtils.bytesToLong(buf, 0);
+      LongUtils.longToBytes((long)(count-1), buf, 0);
+      wrappedStore.writeBlock(freeHead, buf, 0, 8, 8);
+      return ret;
+    }
+    int ret = freeHead;
+    wrappedStore.readBlock(freeHead, buf, 0, 0, 8);
+    writeFreeHead((int) LongUtils.bytesToLong(buf, 0));
     return ret;
   }
 
+  // Push a block onto the free list, trimming it first.  A number is
+  // written before the count that covers it, so a crash in between only
+  // leaks the block.
+  private synchronized void freeBlock(int block) throws DataIntegrityException {
+    wrappedStore.trimBlock(block);
+    byte[] buf = new byte[8];
+    if(freeHead != 0){
+      wrappedStore.readBlock(freeHead, buf, 0, 8, 8);
+      int count = (int) LongUtils.bytesToLong(buf, 0);
+      if(count < freeListCapacity){
+        LongUtils.longToBytes((long)block, buf, 0);
+        wrappedStore.writeBlock(freeHead, buf, 0, 16+8*count, 8);
+        LongUtils.longToBytes((long)(count+1), buf, 0);
+        wrappedStore.writeBlock(freeHead, buf, 0, 8, 8);
+        return;
+      }
+    }
+    byte[] listBlock = new byte[16];
+    LongUtils.longToBytes((long)freeHead, listBlock, 0);
+    wrappedStore.writeBlock(block, listBlock, 0, 0, listBlock.length);
+    writeFreeHead(block);
+  }
+
+  public synchronized void deleteSubStore(int idx) 
+  throws DataIntegrityException {
+    Multiplexed m = stores.get(idx);
+    List<long[]> refs = new ArrayList<long[]>();
+    m.collectMap(refs);
+    // the store is gone as soon as its map pointer says so; a crash
+    // while freeing its blocks only leaks them until the next compact()
+    m.markDeleted();
+    for(long[] r : refs){
+      freeBlock((int) r[0]);
+    }
+    releaseExtent(m);
+  }
+
+  // Give back the unused rest of <m>'s extent: pull the next free block
+  // down over it if nothing was reserved after it, else free it, last
+  // block first, so that the free list hands it out in order again.
+  private synchronized void releaseExtent(Multiplexed m) 
+  throws DataIntegrityException {
+    if(m.extentNext < m.extentEnd && m.extentEnd == firstFreeBlock){
+      firstFreeBlock = m.extentNext;
+    }else{
+      while(m.extentNext < m.extentEnd){
+        freeBlock(--m.extentEnd);
+      }
+    }
+    m.extentNext = m.extentEnd = m.extentSize = 0;
+  }
+
+  // Extents are released latest first, so each one can pull the next free
+  // block down to where the one before it ends.  Then the persisted
+  // high-water mark comes down to the next free block.
+  public synchronized void close() throws DataIntegrityException {
+    List<Multiplexed> byEnd = new ArrayList<Multiplexed>(stores);
+    Collections.sort(byEnd, new Comparator<Multiplexed>() {
+      public int compare(Multiplexed a, Multiplexed b) {
+        return Integer.compare(b.extentEnd, a.extentEnd);
+      }
+    });
+    for(Multiplexed m : byEnd){
+      releaseExtent(m);
+    }
+    if(reservedEnd != firstFreeBlock){
+      reservedEnd = firstFreeBlock;
+      byte[] buf = new byte[8];
+      LongUtils.longToBytes((long)reservedEnd, buf, 0);
+      wrappedStore.writeSuperBlock(buf, 0, wrappedStore.superBlockSize()-8, 8);
+    }
+  }
+
+  public boolean isSubStoreDeleted(int idx) throws DataIntegrityException {
+    return stores.get(idx).isDeleted();
+  }
+
+  // Each block in use is recorded with the one pointer that refers to it
+  // (see Multiplexed.collectMap).  Blocks at or past the number of blocks
+  // in use are copied into holes below it, and only then are the
+  // pointers switched, so a crash part way leaves every pointer aiming at
+  // a complete copy.  The free list is emptied first, since its blocks
+  // are about to be overwritten.
+  public synchronized void compact() throws DataIntegrityException {
+    writeFreeHead(0);
+    List<long[]> refs = new ArrayList<long[]>();
+    for(Multiplexed m : stores){
+      if(m.storeNum != 0){
+        refs.add(m.masterReference());
+      }
+      m.collectMap(refs);
+    }
+    BitSet live = new BitSet();
+    live.set(0);
+    for(long[] r : refs){
+      live.set((int) r[0]);
+    }
+    int liveCount = live.cardinality();
+    int oldEnd = reservedEnd;
+
+    Map<Integer, Integer> moved = new HashMap<Integer, Integer>();
+    byte[] buf = new byte[wrappedStore.blockSize()];
+    int hole = 0;
+    for(long[] r : refs){
+      int block = (int) r[0];
+      if(block < liveCount){
+        continue;
+      }
+      hole = live.nextClearBit(hole);
+      wrappedStore.readBlock(block, buf, 0, 0, buf.length);
+      wrappedStore.writeBlock(hole, buf, 0, 0, buf.length);
+      live.set(hole);
+      moved.put(block, hole);
+    }
+    byte[] ptr = new byte[8];
+    for(long[] r : refs){
+      Integer target = moved.get((int) r[0]);
+      if(target == null){
+        continue;
+      }
+      Integer referrer = moved.get((int) r[1]);
+      LongUtils.longToBytes(r[3] | target, ptr, 0);
+      wrappedStore.writeBlock((referrer == null) ? (int) r[1] : referrer, 
+        ptr, 0, (int) r[2], 8);
+    }
+    for(Multiplexed m : stores){
+      m.invalidateTranslations();
+      m.extentNext = m.extentEnd = m.extentSize = 0;
+    }
+
+    firstFreeBlock = reservedEnd = liveCount;
+    LongUtils.longToBytes((long)reservedEnd, ptr, 0);
+    wrappedStore.writeSuperBlock(ptr, 0, wrappedStore.superBlockSize()-8, 8);
+    for(int block=oldEnd-1; block>=liveCount; --block){
+      wrappedStore.trimBlock(block);
+    }
+  }
+
   public int numSubStores() throws DataIntegrityException {
     return stores.size();
   }
 
+  public synchronized void setTranslationCacheEntries(int entries) {
+    if(entries < 0){
+      throw new IllegalArgumentException();
+    }
+    translationEntries = (entries == 0) ? 0 : Integer.highestOneBit(entries);
+    for(Multiplexed m : stores){
+      m.invalidateTranslations();
+    }
+  }
+
+  public long translationHits() {
+    return translationHits.get();
+  }
+
+  public long translationMisses() {
+    return translationMisses.get();
+  }
+
   public BlockStore getSubStore(int idx) {
     return stores.get(idx);
   }
@@ -124,7 +513,7 @@ public class BlockStoreMultiplexor {
 
     Multiplexed newStore = new Multiplexed(storeNum);
     stores.add(newStore);
-    int masterBlockNum = allocateBlock();
+    int masterBlockNum = allocateBlock(null);
     wrappedStore.writeBlock(masterBlockNum, masterBlockTemplate, 0, 0, 
       wrappedStore.blockSize());
     newStore.writeMasterPointer(masterBlockNum);
@@ -135,6 +524,25 @@ public class BlockStoreMultiplexor {
   class Multiplexed implements BlockStore {
     private int storeNum;
 
+    // Translation cache.  The master block number is looked up once, and
+    // data block translations are kept in a direct-mapped table indexed by
+    // the low bits of the logical block number, so consecutive blocks
+    // don't collide.  Each entry packs the logical block number (high
+    // half) and the physical one (low half) into a long, so an entry is
+    // read and written in one piece; -1 marks an empty entry.  A
+    // translation never changes once its block has been allocated, so
+    // entries are only dropped when their slot is needed for another block
+    // or the table is invalidated.  The table is created on first use.
+    private int    masterBlock = -1;
+    private long[] translations = null;
+    private long   mapPointer = 0;          // 0: not read yet
+
+    // This store's extent: blocks extentNext thru extentEnd-1 of the
+    // wrapped store are reserved for it.  Guarded by the multiplexor.
+    private int extentNext = 0;
+    private int extentEnd = 0;
+    private int extentSize = 0;             // size of the last extent
+
     Multiplexed(int sn) throws DataIntegrityException {
       storeNum = sn;
     }
@@ -180,6 +588,53 @@ public class BlockStoreMultiplexor {
       return msbSize;
     }
 
+    // Syncs all of <ws>, not just this store's blocks.
+    public void sync() throws DataIntegrityException {
+      wrappedStore.sync();
+    }
+
+    // Forget every cached translation, for when this store's blocks have
+    // moved.
+    synchronized void invalidateTranslations() {
+      masterBlock = -1;
+      translations = null;
+      mapPointer = 0;
+    }
+
+    private synchronized int cachedTranslation(int blockNum) {
+      long[] table = translations;
+      if(table != null){
+        long entry = table[blockNum & (table.length-1)];
+        if(entry != -1 && (int) (entry >>> 32) == blockNum){
+          countTranslation(true);
+          return (int) entry;
+        }
+      }
+      countTranslation(false);
+      return -1;
+    }
+
+    private synchronized void cacheTranslation(int blockNum, int realBlockNum) {
+      int entries = translationEntries;
+      if(entries == 0){
+        translations = null;
+        return;
+      }
+      if(translations == null || translations.length != entries){
+        translations = new long[entries];
+        Arrays.fill(translations, -1);
+      }
+      translations[blockNum & (entries-1)] = 
+        ((long) blockNum << 32) | (realBlockNum & 0xffffffffL);
+    }
+
+    private int masterBlockNum() throws DataIntegrityException {
+      if(masterBlock == -1){
+        masterBlock = getMasterBlockNum(storeNum, 0);
+      }
+      return masterBlock;
+    }
+
     private int getMasterBlockNum(int num, int baseBlock) 
     throws DataIntegrityException {
       if(num == 0){
@@ -211,7 +666,7 @@ public class BlockStoreMultiplexor {
         int newBase = (int) LongUtils.bytesToLong(slotContents, 0);
         if(newBase == -1){
 		      // block isn't allocated yet; allocate it and initialize
-          newBase = allocateBlock();
+          newBase = allocateBlock(this);
           wrappedStore.writeBlock(newBase, dataBlockTemplate, 0, 0, 
             wrappedStore.blockSize());
 
@@ -224,18 +679,145 @@ public class BlockStoreMultiplexor {
       }
     }
 
+    // Physical block holding logical block <blockNum>, from the cache if
+    // possible.
     private int getDataBlockNum(int blockNum) throws DataIntegrityException {
-      int mblock = getMasterBlockNum(storeNum, 0);
+      if(blockNum < 0){
+        throw new ArrayIndexOutOfBoundsException();
+      }
+      int realBlockNum = cachedTranslation(blockNum);
+      if(realBlockNum == -1){
+        realBlockNum = lookupDataBlockNum(blockNum);
+        cacheTranslation(blockNum, realBlockNum);
+      }
+      return realBlockNum;
+    }
+
+    // The block map pointer from the master block: -1 if there is no map
+    // yet, a plain block number for a pointer chain, or depth<<32 | block
+    // for a radix index.
+    private long mapPointer() throws DataIntegrityException {
+      if(mapPointer == 0){
+        byte[] dbBuf = new byte[dPtrSize];
+        wrappedStore.readBlock(masterBlockNum(), dbBuf, 0, 
+          wrappedStore.blockSize()-(msbSize+dPtrSize), dPtrSize);
+        mapPointer = LongUtils.bytesToLong(dbBuf, 0);
+      }
+      return mapPointer;
+    }
+
+    private void writeMapPointer(long ptr) throws DataIntegrityException {
       byte[] dbBuf = new byte[dPtrSize];
-      wrappedStore.readBlock(mblock, dbBuf, 0, 
+      LongUtils.longToBytes(ptr, dbBuf, 0);
+      wrappedStore.writeBlock(masterBlockNum(), dbBuf, 0, 
         wrappedStore.blockSize()-(msbSize+dPtrSize), dPtrSize);
-      int dbNum = (int) LongUtils.bytesToLong(dbBuf, 0);
+      mapPointer = ptr;
+    }
+
+    private boolean usesIndex(long ptr) {
+      return (ptr == -1) ? (formatVersion == RadixFormat) : (ptr >>> 32) != 0;
+    }
+
+    boolean isDeleted() throws DataIntegrityException {
+      return mapPointer() == DeletedMap;
+    }
+
+    private void checkLive() throws DataIntegrityException {
+      if(isDeleted()){
+        throw new IllegalStateException();
+      }
+    }
+
+    void markDeleted() throws DataIntegrityException {
+      writeMapPointer(DeletedMap);
+      byte[] zeroes = new byte[msbSize];
+      wrappedStore.writeBlock(masterBlockNum(), zeroes, 0, 
+        wrappedStore.blockSize()-msbSize, msbSize);
+      invalidateTranslations();
+    }
+
+    // Where the pointer to this store's master block is kept: the slot
+    // that getMasterBlockNum reads last.  Returned as a collectMap entry.
+    long[] masterReference() throws DataIntegrityException {
+      int num = storeNum;
+      int base = 0;
+      byte[] slotContents = new byte[mPtrSize];
+      while(true){
+        int slot = (num-1) % mNumPtrs;
+        num = (num-1) / mNumPtrs;
+        if(num == 0){
+          return new long[] { masterBlockNum(), base, slot*mPtrSize, 0 };
+        }
+        wrappedStore.readBlock(base, slotContents, 0, slot*mPtrSize, mPtrSize);
+        base = (int) LongUtils.bytesToLong(slotContents, 0);
+      }
+    }
+
+    // Add an entry for every block of this store's map (index and data
+    // blocks, or chain blocks) to <refs>: { block, block holding the
+    // pointer to it, offset of the pointer, upper bits of the pointer }.
+    void collectMap(List<long[]> refs) throws DataIntegrityException {
+      long ptr = mapPointer();
+      if(ptr == -1 || ptr == DeletedMap){
+        return;
+      }
+      int mapOffset = wrappedStore.blockSize()-(msbSize+dPtrSize);
+      refs.add(new long[] { (int) ptr, masterBlockNum(), mapOffset, 
+        ptr & 0xffffffff00000000L });
+      if(usesIndex(ptr)){
+        collectIndex((int) ptr, (int) (ptr >>> 32), refs);
+        return;
+      }
+      byte[] slotContents = new byte[dPtrSize];
+      List<Integer> pending = new ArrayList<Integer>();
+      pending.add((int) ptr);
+      while(! pending.isEmpty()){
+        int block = pending.remove(pending.size()-1);
+        for(int slot=0; slot<dNumPtrs; ++slot){
+          int offset = wrappedStore.blockSize()-dPtrSize*(dNumPtrs-slot);
+          wrappedStore.readBlock(block, slotContents, 0, offset, dPtrSize);
+          long child = LongUtils.bytesToLong(slotContents, 0);
+          if(child != -1){
+            refs.add(new long[] { child, block, offset, 0 });
+            pending.add((int) child);
+          }
+        }
+      }
+    }
+
+    private void collectIndex(int block, int level, List<long[]> refs) 
+    throws DataIntegrityException {
+      byte[] buf = new byte[wrappedStore.blockSize()];
+      wrappedStore.readBlock(block, buf, 0, 0, buf.length);
+      for(int slot=0; slot<iNumPtrs; ++slot){
+        long child = LongUtils.bytesToLong(buf, slot*dPtrSize);
+        if(child != -1){
+          refs.add(new long[] { child, block, slot*dPtrSize, 0 });
+          if(level > 1){
+            collectIndex((int) child, level-1, refs);
+          }
+        }
+      }
+    }
+
+    // Walk the block map from the master block, allocating as needed.
+    private int lookupDataBlockNum(int blockNum) 
+    throws DataIntegrityException {
+      checkLive();
+      long ptr = mapPointer();
+      if(usesIndex(ptr)){
+        long[] root = { ptr };
+        int ret = indexWalk(root, blockNum, -1);
+        if(root[0] != ptr){
+          writeMapPointer(root[0]);
+        }
+        return ret;
+      }
+      int dbNum = (int) ptr;
       if(dbNum == -1){
 		    // no data blocks exist in this store, need to allocate the first one
-        dbNum = allocateBlock();
-        LongUtils.longToBytes((long)dbNum, dbBuf, 0);
-        wrappedStore.writeBlock(mblock, dbBuf, 0, 
-          wrappedStore.blockSize()-(msbSize+dPtrSize), dPtrSize);
+        dbNum = allocateBlock(this);
+        writeMapPointer(dbNum);
 
 		    // fill in the data block
         wrappedStore.writeBlock(dbNum, dataBlockTemplate, 0, 0, 
@@ -244,6 +826,112 @@ public class BlockStoreMultiplexor {
       return getDBRec(blockNum, dbNum);
     }
 
+    // Number of data blocks a radix index of <depth> levels can map.
+    private long indexSpan(int depth) {
+      long span = 1;
+      for(int i=0; i<depth && span<=Integer.MAX_VALUE; ++i){
+        span *= iNumPtrs;
+      }
+      return span;
+    }
+
+    // Find the data block for <blockNum> in the radix index whose map
+    // pointer is root[0], allocating missing index and data blocks.  If
+    // <dataBlock> isn't -1, that block is entered as <blockNum>'s data
+    // block instead of allocating one.  The tree grows a level at the top
+    // while it is too shallow; the new map pointer is left in root[0] for
+    // the caller to store, once the tree below it is complete.
+    private int indexWalk(long[] root, int blockNum, int dataBlock) 
+    throws DataIntegrityException {
+      int depth = (root[0] == -1) ? 0 : (int) (root[0] >>> 32);
+      int top = (int) root[0];
+      byte[] slotContents = new byte[dPtrSize];
+      while(depth == 0 || blockNum >= indexSpan(depth)){
+        int newTop = allocateBlock(this);
+        wrappedStore.writeBlock(newTop, indexBlockTemplate, 0, 0, 
+          indexBlockTemplate.length);
+        if(depth > 0){
+          LongUtils.longToBytes((long)top, slotContents, 0);
+          wrappedStore.writeBlock(newTop, slotContents, 0, 0, dPtrSize);
+        }
+        top = newTop;
+        ++depth;
+      }
+      root[0] = ((long)depth << 32) | top;
+
+      int base = top;
+      for(int level=depth; level>0; --level){
+        int slot = (int) ((blockNum / indexSpan(level-1)) % iNumPtrs);
+        wrappedStore.readBlock(base, slotContents, 0, slot*dPtrSize, dPtrSize);
+        int next = (int) LongUtils.bytesToLong(slotContents, 0);
+        if(level == 1 && dataBlock != -1){
+          next = dataBlock;
+        }else if(next == -1){
+          next = allocateBlock(this);
+          byte[] template = (level == 1) ? dataBlockTemplate : indexBlockTemplate;
+          wrappedStore.writeBlock(next, template, 0, 0, template.length);
+        }else{
+          base = next;
+          continue;
+        }
+        LongUtils.longToBytes((long)next, slotContents, 0);
+        wrappedStore.writeBlock(base, slotContents, 0, slot*dPtrSize, dPtrSize);
+        base = next;
+      }
+      return base;
+    }
+
+    // Build a radix index over the data blocks of the pointer chain, and
+    // switch the map pointer to it.  Block numbers are recovered from the
+    // path to each block: following slot s out of a block for logical
+    // block L at chain depth d leads to logical block L + 4^d*(s+1).
+    void migrateToIndex() throws DataIntegrityException {
+      long ptr = mapPointer();
+      if(ptr == -1 || ptr == DeletedMap || usesIndex(ptr)){
+        return;
+      }
+      long[] root = { -1 };
+      List<long[]> pending = new ArrayList<long[]>();
+      pending.add(new long[] { ptr, 0, 1 });     // block, logical, weight
+      byte[] slotContents = new byte[dPtrSize];
+      while(! pending.isEmpty()){
+        long[] node = pending.remove(pending.size()-1);
+        if(node[1] <= Integer.MAX_VALUE){
+          indexWalk(root, (int) node[1], (int) node[0]);
+        }
+        for(int slot=0; slot<dNumPtrs; ++slot){
+          wrappedStore.readBlock((int) node[0], slotContents, 0, 
+            wrappedStore.blockSize()-dPtrSize*(dNumPtrs-slot), dPtrSize);
+          long child = LongUtils.bytesToLong(slotContents, 0);
+          if(child != -1){
+            pending.add(new long[] { child, node[1] + node[2]*(slot+1), 
+              node[2]*dNumPtrs });
+          }
+        }
+      }
+      writeMapPointer(root[0]);
+      invalidateTranslations();
+    }
+
+    // Block of the wrapped store holding logical block <blockNum>.
+    int physicalBlockNum(int blockNum) throws DataIntegrityException {
+      return getDataBlockNum(blockNum);
+    }
+
+    // Number of index levels (or, for a pointer chain, dependent pointer
+    // reads) between the map pointer and logical block <blockNum>.
+    int lookupDepth(int blockNum) throws DataIntegrityException {
+      long ptr = mapPointer();
+      if(usesIndex(ptr)){
+        return (ptr == -1) ? 0 : (int) (ptr >>> 32);
+      }
+      int hops = 0;
+      for(int num=blockNum; num!=0; num=(num-1)/dNumPtrs){
+        ++hops;
+      }
+      return hops;
+    }
+
     public void readSuperBlock(byte[] buf, int bufOffset, int blockOffset, 
       int nbytes) throws DataIntegrityException {
 
@@ -251,7 +939,8 @@ public class BlockStoreMultiplexor {
         throw new ArrayIndexOutOfBoundsException();
       }
 
-      int masterBlockNum = getMasterBlockNum(storeNum, 0);
+      checkLive();
+      int masterBlockNum = masterBlockNum();
       wrappedStore.readBlock(masterBlockNum, buf, bufOffset, 
         blockOffset+wrappedStore.blockSize()-msbSize, nbytes);
     }
@@ -263,7 +952,8 @@ public class BlockStoreMultiplexor {
         throw new ArrayIndexOutOfBoundsException();
       }
 
-      int masterBlockNum = getMasterBlockNum(storeNum, 0);
+      checkLive();
+      int masterBlockNum = masterBlockNum();
       wrappedStore.writeBlock(masterBlockNum, buf, bufOffset, 
         blockOffset+wrappedStore.blockSize()-msbSize, nbytes);
     }
@@ -296,5 +986,82 @@ public class BlockStoreMultiplexor {
       wrappedStore.writeBlock(realBlockNum, buf, bufOffset, blockOffset, 
         nbytes);
     }
+
+    public void readBlock(int blockNum, ByteBuffer dst, int blockOffset) 
+      throws DataIntegrityException {
+
+      if(blockOffset+dst.remaining() > dbSize){
+        throw new ArrayIndexOutOfBoundsException();
+      }
+      wrappedStore.readBlock(getDataBlockNum(blockNum), dst, blockOffset);
+    }
+
+    public void writeBlock(int blockNum, ByteBuffer src, int blockOffset) 
+      throws DataIntegrityException {
+
+      if(blockOffset+src.remaining() > dbSize){
+        throw new ArrayIndexOutOfBoundsException();
+      }
+      wrappedStore.writeBlock(getDataBlockNum(blockNum), src, blockOffset);
+    }
+
+    // Vectored operations are translated range by range and passed down as
+    // one batch, so the wrapped store can share work between them.
+    private List<BlockRange> translate(List<BlockRange> ranges) 
+      throws DataIntegrityException {
+
+      List<BlockRange> ret = new ArrayList<BlockRange>(ranges.size());
+      for(BlockRange r : ranges){
+        if(r.blockOffset+r.nbytes > dbSize){
+          throw new ArrayIndexOutOfBoundsException();
+        }
+        ret.add(r.onBlock(getDataBlockNum(r.blockNum)));
+      }
+      return ret;
+    }
+
+    public void readBlocks(List<BlockRange> ranges) 
+      throws DataIntegrityException {
+      wrappedStore.readBlocks(translate(ranges));
+    }
+
+    public void writeBlocks(List<BlockRange> ranges) 
+      throws DataIntegrityException {
+      wrappedStore.writeBlocks(translate(ranges));
+    }
+
+    // Asynchronous operations are translated up front, then passed down.
+    // They only overlap if <ws> overrides them.
+    public CompletableFuture<Void> readBlockAsync(int blockNum, byte[] buf, 
+      int bufOffset, int blockOffset, int nbytes) {
+
+      CompletableFuture<Void> ret = new CompletableFuture<Void>();
+      try {
+        if(blockOffset+nbytes > dbSize){
+          throw new ArrayIndexOutOfBoundsException();
+        }
+        return wrappedStore.readBlockAsync(getDataBlockNum(blockNum), buf, 
+          bufOffset, blockOffset, nbytes);
+      } catch(DataIntegrityException | RuntimeException x) {
+        ret.completeExceptionally(x);
+      }
+      return ret;
+    }
+
+    public CompletableFuture<Void> writeBlockAsync(int blockNum, byte[] buf, 
+      int bufOffset, int blockOffset, int nbytes) {
+
+      CompletableFuture<Void> ret = new CompletableFuture<Void>();
+      try {
+        if(blockOffset+nbytes > dbSize){
+          throw new ArrayIndexOutOfBoundsException();
+        }
+        return wrappedStore.writeBlockAsync(getDataBlockNum(blockNum), buf, 
+          bufOffset, blockOffset, nbytes);
+      } catch(DataIntegrityException | RuntimeException x) {
+        ret.completeExceptionally(x);
+      }
+      return ret;
+    }
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,471 @@
+// This class is a BlockStore wrapper that keeps recently used blocks of
+// another BlockStore in memory.  It holds at most a fixed number of blocks.
+// When it is full, an EvictionPolicy picks the block to drop; LRU and CLOCK
+// policies are provided.
+//
+// The cache is write-back: writes only change the cached copy, which is
+// marked dirty, and dirty blocks reach the wrapped store when flush() is
+// called.  The superblock is cached the same way.  flush() writes all dirty
+// blocks as one vectored writeBlocks call and then writes the superblock,
+// so a wrapped store that keeps integrity information in the superblock
+// never sees it ahead of the data.  Evicting a dirty block would send it
+// home on its own, so instead it triggers a whole flush, which keeps that
+// ordering and leaves every block clean.
+//
+// The cache's lock is not held during I/O on the wrapped store.  A block
+// being loaded has its slot reserved and marked loading, and anyone else
+// who wants that block waits for the load to finish; other blocks can be
+// used meanwhile.  flush() writes copies of the dirty blocks, and a block
+// only counts as clean afterwards if it wasn't written again meanwhile.
+// Flushes, trims and format() are serialized by <flushLock>, which is
+// always taken before <lock>.
+//
+// Here is the API, beyond BlockStore:
+//
+// CachingBlockStore cbs = new CachingBlockStore(ws, nblocks);
+// CachingBlockStore cbs = new CachingBlockStore(ws, nblocks, policy);
+//   Cache up to <nblocks> blocks of <ws>, evicting with <policy>
+//   (CLOCK if not given).
+//
+// cbs.flush();
+//   Write every dirty block, then the superblock if dirty, to <ws>.
+//
+// cbs.hits(), cbs.misses(), cbs.evictions(), cbs.writeBacks()
+//   Counters since creation (or since resetStats()).
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+public class CachingBlockStore implements BlockStore {
+	// Decides which cache slot to reuse when the cache is full.  Slots are
+	// numbered 0 thru capacity-1.
+	public interface EvictionPolicy {
+		// Called once, before any other call.
+		public void init(int capacity);
+
+		// Slot <slot> was filled with a new block, or its block was used.
+		public void filled(int slot);
+		public void used(int slot);
+
+		// Pick a slot to empty.  Every slot is full when this is called.
+		public int victim();
+	}
+
+	// Least-recently-used, kept as a doubly-linked list of slots.
+	public static class LruPolicy implements EvictionPolicy {
+		private int[] prev;
+		private int[] next;
+		private int   head = -1;     // most recently used
+		private int   tail = -1;     // least recently used
+
+		public void init(int capacity) {
+			prev = new int[capacity];
+			next = new int[capacity];
+			Arrays.fill(prev, -1);
+			Arrays.fill(next, -1);
+		}
+
+		private void unlink(int slot) {
+			if(prev[slot] != -1){ next[prev[slot]] = next[slot]; }
+			if(next[slot] != -1){ prev[next[slot]] = prev[slot]; }
+			if(head == slot){ head = next[slot]; }
+			if(tail == slot){ tail = prev[slot]; }
+			prev[slot] = next[slot] = -1;
+		}
+
+		public void filled(int slot) {
+			used(slot);
+		}
+
+		public void used(int slot) {
+			if(head == slot){
+				return;
+			}
+			unlink(slot);
+			next[slot] = head;
+			if(head != -1){ prev[head] = slot; }
+			head = slot;
+			if(tail == -1){ tail = slot; }
+		}
+
+		public int victim() {
+			return tail;
+		}
+	}
+
+	// CLOCK (second chance): a hand sweeps the slots, clearing reference
+	// bits, and stops at the first slot whose bit is already clear.
+	public static class ClockPolicy implements EvictionPolicy {
+		private boolean[] referenced;
+		private int       hand = 0;
+
+		public void init(int capacity) {
+			referenced = new boolean[capacity];
+		}
+
+		public void filled(int slot) {
+			referenced[slot] = true;
+		}
+
+		public void used(int slot) {
+			referenced[slot] = true;
+		}
+
+		public int victim() {
+			while(referenced[hand]){
+				referenced[hand] = false;
+				hand = (hand+1) % referenced.length;
+			}
+			int ret = hand;
+			hand = (hand+1) % referenced.length;
+			return ret;
+		}
+	}
+
+	private BlockStore     wrappedStore;
+	private EvictionPolicy policy;
+	private int            blockSize;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition     loaded = lock.newCondition();
+	private final Object        flushLock = new Object();
+
+	private byte[][]  slotData;
+	private int[]     slotBlock;       // block held by each slot, or -1
+	private boolean[] slotDirty;
+	private boolean[] slotLoading;     // being read from the wrapped store
+	private long[]    slotVersion;     // writeCount as of the last write
+	private int       slotsUsed = 0;
+	private ArrayDeque<Integer> freeSlots = new ArrayDeque<Integer>();
+	private HashMap<Integer, Integer> slotOf = new HashMap<Integer, Integer>();
+
+	private byte[]  superImage = null;
+	private boolean superDirty = false;
+	private long    superVersion = 0;
+	private long    writeCount = 0;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long writeBacks = 0;
+
+	public CachingBlockStore(BlockStore ws, int nblocks) {
+		this(ws, nblocks, new ClockPolicy());
+	}
+
+	public CachingBlockStore(BlockStore ws, int nblocks, EvictionPolicy policy) {
+		wrappedStore = ws;
+		this.policy = policy;
+		blockSize = ws.blockSize();
+		slotData = new byte[nblocks][];
+		slotBlock = new int[nblocks];
+		slotDirty = new boolean[nblocks];
+		slotLoading = new boolean[nblocks];
+		slotVersion = new long[nblocks];
+		Arrays.fill(slotBlock, -1);
+		policy.init(nblocks);
+	}
+
+	public long hits() {
+		lock.lock();
+		try {    return hits;    } finally {    lock.unlock();    }
+	}
+
+	public long misses() {
+		lock.lock();
+		try {    return misses;    } finally {    lock.unlock();    }
+	}
+
+	public long evictions() {
+		lock.lock();
+		try {    return evictions;    } finally {    lock.unlock();    }
+	}
+
+	public long writeBacks() {
+		lock.lock();
+		try {    return writeBacks;    } finally {    lock.unlock();    }
+	}
+
+	public void resetStats() {
+		lock.lock();
+		try {
+			hits = misses = evictions = writeBacks = 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Wait, with <lock> held, until no slot is loading.
+	private void awaitLoads() {
+		for(int slot=0; slot<slotsUsed; ++slot){
+			while(slotLoading[slot]){
+				loaded.awaitUninterruptibly();
+			}
+		}
+	}
+
+	public void format() throws DataIntegrityException {
+		synchronized(flushLock) {
+			lock.lock();
+			try {
+				// everything cached is about to be wiped anyway
+				awaitLoads();
+				Arrays.fill(slotBlock, -1);
+				Arrays.fill(slotDirty, false);
+				slotOf.clear();
+				freeSlots.clear();
+				slotsUsed = 0;
+				policy.init(slotBlock.length);
+				superImage = null;
+				superDirty = false;
+				wrappedStore.format();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	public int blockSize() {
+		return blockSize;
+	}
+
+	public int superBlockSize() {
+		return wrappedStore.superBlockSize();
+	}
+
+	// Write every dirty block, then the superblock, to the wrapped store.
+	// Copies are taken under <lock> and written without it.
+	public void flush() throws DataIntegrityException {
+		synchronized(flushLock) {
+			List<BlockRange> dirty = new ArrayList<BlockRange>();
+			List<long[]> written = new ArrayList<long[]>();   // slot, block, version
+			byte[] superCopy = null;
+			long superCopyVersion = 0;
+			lock.lock();
+			try {
+				for(int slot=0; slot<slotsUsed; ++slot){
+					if(slotDirty[slot]){
+						dirty.add(new BlockRange(slotBlock[slot], slotData[slot].clone(), 
+							0, 0, blockSize));
+						written.add(new long[] { slot, slotBlock[slot], slotVersion[slot] });
+					}
+				}
+				if(superDirty){
+					superCopy = superImage.clone();
+					superCopyVersion = superVersion;
+				}
+			} finally {
+				lock.unlock();
+			}
+
+			if(! dirty.isEmpty()){
+				wrappedStore.writeBlocks(dirty);
+			}
+			if(superCopy != null){
+				wrappedStore.writeSuperBlock(superCopy, 0, 0, superBlockSize());
+			}
+
+			lock.lock();
+			try {
+				for(long[] w : written){
+					int slot = (int) w[0];
+					if(slotBlock[slot] == (int) w[1] && slotVersion[slot] == w[2]){
+						slotDirty[slot] = false;
+					}
+				}
+				writeBacks += dirty.size();
+				if(superCopy != null && superVersion == superCopyVersion){
+					superDirty = false;
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	public void sync() throws DataIntegrityException {
+		flush();
+		wrappedStore.sync();
+	}
+
+	// Find the slot holding <blockNum>, loading the block if <load> is true.
+	// Called with <lock> held once (not reentrantly), which is let go while
+	// the block is loaded or a dirty victim forces a flush, and held again
+	// on return.
+	private int slotFor(int blockNum, boolean load) throws DataIntegrityException {
+		while(true){
+			Integer slot = slotOf.get(blockNum);
+			if(slot != null){
+				if(slotLoading[slot]){
+					loaded.awaitUninterruptibly();
+					continue;
+				}
+				++hits;
+				policy.used(slot);
+				return slot;
+			}
+
+			int s = -1;
+			if(! freeSlots.isEmpty()){
+				s = freeSlots.pop();
+			}else if(slotsUsed < slotBlock.length){
+				s = slotsUsed++;
+				slotData[s] = new byte[blockSize];
+			}else{
+				for(int tries=0; tries<slotBlock.length && s == -1; ++tries){
+					int v = policy.victim();
+					if(slotLoading[v]){
+						policy.used(v);
+					}else{
+						s = v;
+					}
+				}
+				if(s == -1){
+					loaded.awaitUninterruptibly();
+					continue;
+				}
+				if(slotDirty[s]){
+					policy.used(s);
+					lock.unlock();
+					try {
+						flush();
+					} finally {
+						lock.lock();
+					}
+					continue;
+				}
+				slotOf.remove(slotBlock[s]);
+				slotBlock[s] = -1;
+				++evictions;
+			}
+			++misses;
+
+			slotBlock[s] = blockNum;
+			slotDirty[s] = false;
+			slotOf.put(blockNum, s);
+			policy.filled(s);
+			if(load){
+				slotLoading[s] = true;
+				boolean ok = false;
+				lock.unlock();
+				try {
+					wrappedStore.readBlock(blockNum, slotData[s], 0, 0, blockSize);
+					ok = true;
+				} finally {
+					lock.lock();
+					slotLoading[s] = false;
+					if(! ok){
+						slotOf.remove(blockNum);
+						slotBlock[s] = -1;
+						freeSlots.push(s);
+					}
+					loaded.signalAll();
+				}
+			}
+			return s;
+		}
+	}
+
+	public void writeBlock(int blockNum, byte[] buf, int bufOffset,
+		int blockOffset, int nbytes) throws DataIntegrityException {
+
+		if( (blockNum<0) || (blockOffset<0) || (blockOffset+nbytes > blockSize) ){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+		boolean whole = (blockOffset==0) && (nbytes==blockSize);
+		lock.lock();
+		try {
+			int slot = slotFor(blockNum, ! whole);
+			System.arraycopy(buf, bufOffset, slotData[slot], blockOffset, nbytes);
+			slotDirty[slot] = true;
+			slotVersion[slot] = ++writeCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void readBlock(int blockNum, byte[] buf, int bufOffset,
+		int blockOffset, int nbytes) throws DataIntegrityException {
+
+		if( (blockNum<0) || (blockOffset<0) || (blockOffset+nbytes > blockSize) ){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+		lock.lock();
+		try {
+			int slot = slotFor(blockNum, true);
+			System.arraycopy(slotData[slot], blockOffset, buf, bufOffset, nbytes);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// A cached copy of the block is dropped, even if dirty, and its slot
+	// is reused before any other block is evicted.  The wrapped store is
+	// trimmed with <lock> held, so no load of the block can overtake it.
+	public void trimBlock(int blockNum) throws DataIntegrityException {
+		synchronized(flushLock) {
+			lock.lock();
+			try {
+				Integer slot;
+				while((slot = slotOf.get(blockNum)) != null && slotLoading[slot]){
+					loaded.awaitUninterruptibly();
+				}
+				if(slot != null){
+					slotOf.remove(blockNum);
+					slotBlock[slot] = -1;
+					slotDirty[slot] = false;
+					freeSlots.push(slot);
+				}
+				wrappedStore.trimBlock(blockNum);
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	// The superblock is read once, under <lock>.
+	private void loadSuperBlock() throws DataIntegrityException {
+		if(superImage == null){
+			superImage = new byte[superBlockSize()];
+			wrappedStore.readSuperBlock(superImage, 0, 0, superBlockSize());
+		}
+	}
+
+	public void writeSuperBlock(byte[] buf, int bufOffset,
+		int blockOffset, int nbytes) throws DataIntegrityException {
+
+		if( (blockOffset<0) || (blockOffset+nbytes > superBlockSize()) ){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+		lock.lock();
+		try {
+			loadSuperBlock();
+			System.arraycopy(buf, bufOffset, superImage, blockOffset, nbytes);
+			superDirty = true;
+			superVersion = ++writeCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void readSuperBlock(byte[] buf, int bufOffset,
+		int blockOffset, int nbytes) throws DataIntegrityException {
+
+		if( (blockOffset<0) || (blockOffset+nbytes > superBlockSize()) ){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+		lock.lock();
+		try {
+			loadSuperBlock();
+			System.arraycopy(superImage, blockOffset, buf, bufOffset, nbytes);
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,190 @@
+// This class checks every block held by a BlockStoreAuthEnc in the
+// background, so that tampering or bit rot is found before a client
+// happens to read the damaged block.
+//
+// Rather than verifying each block's path to the root (which rehashes the
+// upper levels over and over), the scrubber works bottom-up over the whole
+// tree in one pass: each node's hash is computed once from its block and
+// compared with the slot its parent holds for it, and the root's with the
+// superblock.  Subtrees are handed to a ForkJoinPool, so the pass uses all
+// cores.  A subtree whose slot in its parent is empty is not visited.
+//
+// Scanning is rate-limited to a number of blocks per second so it doesn't
+// starve foreground traffic.  Since the store may be written while the
+// scrubber runs, a mismatch is confirmed with a normal path check before
+// the block is reported as corrupted.
+//
+// IntegrityScrubber scrubber = new IntegrityScrubber(bsae, blocksPerSecond);
+//   Prepare to scrub <bsae>, scanning at most <blocksPerSecond> blocks per
+//   second (0 for no limit).
+//
+// scrubber.start();   scrubber.run();
+//   Scrub in a background thread, or in this one.
+//
+// scrubber.isDone(), scrubber.blocksScanned(), scrubber.blocksPerSecond()
+//   Progress and throughput.
+//
+// scrubber.corruptedBlocks()
+//   Numbers of the blocks found to be corrupted, in increasing order.
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+public class IntegrityScrubber implements Runnable {
+	private BlockStoreAuthEnc store;
+	private int               blocksPerSecond;
+
+	private final AtomicLong scanned = new AtomicLong();
+	private volatile long    startNanos = 0;
+	private volatile long    endNanos = 0;
+	private volatile boolean done = false;
+	private final TreeSet<Integer> corrupted = new TreeSet<Integer>();
+
+	public IntegrityScrubber(BlockStoreAuthEnc store, int blocksPerSecond) {
+		this.store = store;
+		this.blocksPerSecond = blocksPerSecond;
+	}
+
+	public void start() {
+		Thread t = new Thread(this, "IntegrityScrubber");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	public void run() {
+		startNanos = System.nanoTime();
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			// a deferred tree would look corrupted wherever it is dirty
+			store.flushHashes();
+			byte[] rootHash = pool.invoke(new SubtreeTask(0));
+			if(rootHash != null &&
+				!Arrays.equals(rootHash, store.storedRootHash())){
+				suspect(0);
+			}
+		} catch(DataIntegrityException x) {
+			x.printStackTrace();
+		} finally {
+			pool.shutdown();
+			endNanos = System.nanoTime();
+			done = true;
+		}
+	}
+
+	public boolean isDone() {
+		return done;
+	}
+
+	public long blocksScanned() {
+		return scanned.get();
+	}
+
+	public double blocksPerSecond() {
+		long start = startNanos;
+		if(start == 0){
+			return 0;
+		}
+		long end = done ? endNanos : System.nanoTime();
+		return scanned.get() * 1e9 / Math.max(1, end-start);
+	}
+
+	public List<Integer> corruptedBlocks() {
+		synchronized(corrupted) {
+			return new ArrayList<Integer>(corrupted);
+		}
+	}
+
+	// Record a block whose hash didn't match, unless a full check of its
+	// path says it is fine after all (it was rewritten during the scan).
+	private void suspect(int blockNum) {
+		try {
+			if(store.verifyBlock(blockNum)){
+				return;
+			}
+		} catch(DataIntegrityException x) {
+			// counts as corrupted
+		}
+		synchronized(corrupted) {
+			corrupted.add(blockNum);
+		}
+	}
+
+	// Sleep as needed to stay under blocksPerSecond.
+	private void throttle(long count) {
+		if(blocksPerSecond <= 0){
+			return;
+		}
+		long due = startNanos + count * 1000000000L / blocksPerSecond;
+		long wait = due - System.nanoTime();
+		if(wait > 0){
+			try {
+				Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+			} catch(InterruptedException x) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	// Checks the subtree under one node, and returns the node's hash as
+	// computed from its block, for the parent to compare with its slot, or
+	// null if the node has already been reported, so that the parent
+	// doesn't report it again.
+	private class SubtreeTask extends RecursiveTask<byte[]> {
+		private static final long serialVersionUID = 1L;
+		private int blockNum;
+
+		SubtreeTask(int blockNum) {
+			this.blockNum = blockNum;
+		}
+
+		protected byte[] compute() {
+			try {
+				throttle(scanned.incrementAndGet());
+				byte[] raw = store.readRawNode(blockNum);
+				boolean reported = !store.digestMatches(raw);
+				if(reported){
+					suspect(blockNum);
+				}
+
+				int arity = store.arity();
+				List<SubtreeTask> children = new ArrayList<SubtreeTask>();
+				for(int i=1; i<=arity; ++i){
+					long child = (long) arity*blockNum + i;
+					if(child > Integer.MAX_VALUE){
+						break;
+					}
+					if(!isZero(store.childSlot(raw, (int) child))){
+						children.add(new SubtreeTask((int) child));
+					}
+				}
+				invokeAll(children);
+				for(SubtreeTask t : children){
+					byte[] hash = t.join();
+					if(hash != null &&
+						!Arrays.equals(hash, store.childSlot(raw, t.blockNum))){
+						suspect(t.blockNum);
+					}
+				}
+				return reported ? null : store.hashOfRawNode(raw);
+			} catch(DataIntegrityException x) {
+				suspect(blockNum);
+				return null;
+			}
+		}
+	}
+
+	private static boolean isZero(byte[] buf) {
+		for(int i=0; i<buf.length; ++i){
+			if(buf[i] != 0){
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,250 @@
+// This class is a BlockStore backed by a single preallocated data file plus
+// a superblock file, both accessed through memory mappings.  Block <n> lives
+// at byte offset n*BlockSize of the data file.  The data file is mapped in
+// fixed-size segments; when a write lands past the end of the mapped region
+// the file is grown (sparsely) and another segment is mapped, so the mapping
+// grows as block numbers increase.  Reading a block that lies past the end
+// of the file returns zeroes without growing anything.
+//
+// A block access is therefore a bounds check plus a memory copy, instead of
+// the open/read/close sequence that BlockDevice does for every block.
+//
+// Block accesses hold <mapLock> shared while they touch a mapping, and
+// format() holds it exclusively while it drops the mappings and truncates
+// the file, so nothing can touch a page past the new end of the file.
+// Writes to the mappings reach the file whenever the OS gets to them;
+// sync() forces them.
+//
+// It can be used anywhere a BlockDevice is used:
+//
+// MappedBlockDevice dev = new MappedBlockDevice(pathname);
+//   Open a device backed by the directory <pathname>, creating the
+//   directory and its files if they don't exist yet.
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+
+public class MappedBlockDevice implements BlockStore {
+	private static final int BlockSize = 4096;
+	private static final int SuperBlockSize = 256;
+	private static final int SegmentBlocks = 1024;    // 4 MB per mapping
+	private static final long SegmentBytes = (long)SegmentBlocks * BlockSize;
+
+	private FileChannel dataChannel;
+	private MappedByteBuffer superBlock;
+	private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+	private final ReentrantReadWriteLock mapLock = new ReentrantReadWriteLock();
+
+	public MappedBlockDevice(String pathname) throws IOException {
+		String pathPrefix = pathname;
+		if(! pathPrefix.endsWith("/")){
+			pathPrefix = pathPrefix + "/";
+		}
+
+	// create directory, if it doesn't already exist
+		File f = new File(pathPrefix);
+		if(f.exists()){
+			if(! f.isDirectory()){
+				throw new FileNotFoundException();
+			}
+		}else{
+			f.mkdirs();
+		}
+
+		RandomAccessFile sbFile = new RandomAccessFile(pathPrefix+"SuperBlock", "rw");
+		superBlock = sbFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+			SuperBlockSize);
+		sbFile.close();
+
+		dataChannel = new RandomAccessFile(pathPrefix+"Data", "rw").getChannel();
+		mapExistingSegments();
+	}
+
+	public void format() {
+		mapLock.writeLock().lock();
+		try {
+			// no access holds an old mapping now, and none can get one
+			segments = new MappedByteBuffer[0];
+			dataChannel.truncate(0);
+		} catch(IOException x) {
+			x.printStackTrace();
+		} finally {
+			mapLock.writeLock().unlock();
+		}
+		ByteBuffer sb = superBlock.duplicate();
+		sb.put(new byte[SuperBlockSize]);
+	}
+
+	// Every mapped segment, and the superblock, is forced to the file.
+	public void sync() {
+		mapLock.readLock().lock();
+		try {
+			for(MappedByteBuffer seg : segments){
+				seg.force();
+			}
+			superBlock.force();
+		} finally {
+			mapLock.readLock().unlock();
+		}
+	}
+
+	public int blockSize() {    return BlockSize;    }
+	public int superBlockSize() {    return SuperBlockSize;    }
+
+	private void mapExistingSegments() throws IOException {
+		long size = dataChannel.size();
+		int nsegs = (int) ((size + SegmentBytes - 1) / SegmentBytes);
+		if(nsegs > 0){
+			growTo(nsegs-1);
+		}
+	}
+
+	// Make sure segment <seg> is mapped, growing the data file if needed.
+	private synchronized MappedByteBuffer[] growTo(int seg) throws IOException {
+		MappedByteBuffer[] old = segments;
+		if(seg < old.length){
+			return old;
+		}
+		long needed = (long)(seg+1) * SegmentBytes;
+		if(dataChannel.size() < needed){
+			// write one byte at the end; the rest of the file stays sparse
+			dataChannel.write(ByteBuffer.allocate(1), needed-1);
+		}
+		MappedByteBuffer[] grown = new MappedByteBuffer[seg+1];
+		System.arraycopy(old, 0, grown, 0, old.length);
+		for(int i=old.length; i<=seg; ++i){
+			grown[i] = dataChannel.map(FileChannel.MapMode.READ_WRITE,
+				i*SegmentBytes, SegmentBytes);
+		}
+		segments = grown;
+		return grown;
+	}
+
+	private static void checkBounds(int blockNum, byte[] buf, int bufOffset,
+		int blockOffset, int nbytes, int size) {
+
+		if( (bufOffset<0) || (bufOffset+nbytes > buf.length) ){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+		checkBounds(blockNum, blockOffset, nbytes, size);
+	}
+
+	private static void checkBounds(int blockNum, int blockOffset, int nbytes,
+		int size) {
+
+		if( (blockNum<0) || (blockOffset<0) || (nbytes<0) ||
+			(blockOffset+nbytes > size) ){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+	}
+
+	// Returns a private view of the segment holding <blockNum>, positioned at
+	// <blockOffset> within the block.
+	private ByteBuffer view(MappedByteBuffer[] segs, int blockNum,
+		int blockOffset) {
+
+		ByteBuffer bb = segs[blockNum / SegmentBlocks].duplicate();
+		bb.position((blockNum % SegmentBlocks)*BlockSize + blockOffset);
+		return bb;
+	}
+
+	public void writeBlock(int blockNum, byte[] buf, int bufOffset,
+		int blockOffset, int nbytes) {
+
+		checkBounds(blockNum, buf, bufOffset, blockOffset, nbytes, BlockSize);
+		mapLock.readLock().lock();
+		try {
+			MappedByteBuffer[] segs = segments;
+			if(blockNum / SegmentBlocks >= segs.length){
+				segs = growTo(blockNum / SegmentBlocks);
+			}
+			view(segs, blockNum, blockOffset).put(buf, bufOffset, nbytes);
+		} catch(IOException x) {
+			x.printStackTrace();
+		} finally {
+			mapLock.readLock().unlock();
+		}
+	}
+
+	public void readBlock(int blockNum, byte[] buf, int bufOffset,
+		int blockOffset, int nbytes) {
+
+		checkBounds(blockNum, buf, bufOffset, blockOffset, nbytes, BlockSize);
+		mapLock.readLock().lock();
+		try {
+			MappedByteBuffer[] segs = segments;
+			if(blockNum / SegmentBlocks >= segs.length){
+				// never written; reads as zeroes
+				for(int i=0; i<nbytes; ++i){
+					buf[bufOffset+i] = 0;
+				}
+				return;
+			}
+			view(segs, blockNum, blockOffset).get(buf, bufOffset, nbytes);
+		} finally {
+			mapLock.readLock().unlock();
+		}
+	}
+
+	// Buffers are copied straight to or from the mapping.
+	public void writeBlock(int blockNum, ByteBuffer src, int blockOffset) {
+		checkBounds(blockNum, blockOffset, src.remaining(), BlockSize);
+		mapLock.readLock().lock();
+		try {
+			MappedByteBuffer[] segs = segments;
+			if(blockNum / SegmentBlocks >= segs.length){
+				segs = growTo(blockNum / SegmentBlocks);
+			}
+			view(segs, blockNum, blockOffset).put(src);
+		} catch(IOException x) {
+			x.printStackTrace();
+		} finally {
+			mapLock.readLock().unlock();
+		}
+	}
+
+	public void readBlock(int blockNum, ByteBuffer dst, int blockOffset) {
+		checkBounds(blockNum, blockOffset, dst.remaining(), BlockSize);
+		mapLock.readLock().lock();
+		try {
+			MappedByteBuffer[] segs = segments;
+			if(blockNum / SegmentBlocks >= segs.length){
+				while(dst.hasRemaining()){
+					dst.put((byte)0);
+				}
+				return;
+			}
+			ByteBuffer bb = view(segs, blockNum, blockOffset);
+			bb.limit(bb.position() + dst.remaining());
+			dst.put(bb);
+		} finally {
+			mapLock.readLock().unlock();
+		}
+	}
+
+	public void writeSuperBlock(byte[] buf, int bufOffset, int blockOffset,
+		int nbytes) {
+
+		checkBounds(0, buf, bufOffset, blockOffset, nbytes, SuperBlockSize);
+		ByteBuffer sb = superBlock.duplicate();
+		sb.position(blockOffset);
+		sb.put(buf, bufOffset, nbytes);
+	}
+
+	public void readSuperBlock(byte[] buf, int bufOffset, int blockOffset,
+		int nbytes) {
+
+		checkBounds(0, buf, bufOffset, blockOffset, nbytes, SuperBlockSize);
+		ByteBuffer sb = superBlock.duplicate();
+		sb.position(blockOffset);
+		sb.get(buf, bufOffset, nbytes);
+	}
+}
@@ -10,6 +10,7 @@
 // connects.
 //
 
+import java.io.File;
 import java.net.ServerSocket;
 import java.net.Socket;
 
@@ -24,8 +25,18 @@ public class NetworkServer {
 	public NetworkServer(int portNum, RSAKey privateKey, PRGen prg, 
 		String blockStoreDirectoryName) 
 	throws DataIntegrityException, IOException, FileNotFoundException {
-		BlockDevice bd = new BlockDevice(blockStoreDirectoryName);
-		context = new ServerContext(bd, privateKey, prg);
+		BlockDevice bd = new BlockDevice(blockStoreDirectoryName, true);
+		String logFilename = new File(blockStoreDirectoryName, 
+			"WriteAheadLog").getPath();
+		context = new ServerContext(bd, logFilename, privateKey, prg);
+		serverSock = new ServerSocket(portNum);
+	}
+
+	public NetworkServer(int portNum, RSAKey privateKey, PRGen prg, 
+		BlockStore device) throws DataIntegrityException, IOException {
+		// Same as above, but serves from an already-opened BlockStore, such
+		// as a MappedBlockDevice.
+		context = new ServerContext(device, privateKey, prg);
 		serverSock = new ServerSocket(portNum);
 	}
 
@@ -38,6 +49,11 @@ public class NetworkServer {
 		}
 	}
 
+	// Called on shutdown: see ServerContext.close.
+	public void close() throws DataIntegrityException {
+		context.close();
+	}
+
 	public static void main(String[] args) throws DataIntegrityException, 
 	FileNotFoundException, IOException {
 		int port = Integer.parseInt(args[0]);
@@ -56,8 +72,17 @@ public class NetworkServer {
 		}
 		PRGen prg = new PRGen(prgSeed);
 
-		NetworkServer ns = new NetworkServer(port, privKey, prg, 
+		final NetworkServer ns = new NetworkServer(port, privKey, prg, 
 			blockDeviceDirectoryName);
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				try {
+					ns.close();
+				} catch(DataIntegrityException x) {
+					x.printStackTrace();
+				}
+			}
+		});
 		ns.serverLoop();
 	}
 }
@@ -35,6 +35,10 @@ public class ParityBlockStore implements BlockStore {
 		// correct parity already
 	}
 
+	public void sync() throws DataIntegrityException {
+		wrappedStore.sync();
+	}
+
 	public int blockSize() {
 		return wrappedStore.blockSize() - 1;   // reserve one byte for parity
 	}
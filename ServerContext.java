@@ -6,6 +6,9 @@
 // one client that it is devoted to.
 //
 
+import java.io.IOException;
+
+
 public class ServerContext {
 	public static final int SuccessCode = 0;
 	public static final int UnauthorizedCode = 1;
@@ -21,16 +24,38 @@ public class ServerContext {
 	public ServerAuth auth;
 	public RSAKey     privateKey;
 	public BlockStoreMultiplexor mux;
+	public CachingBlockStore     cache;
+	public BlockStoreAuthEnc     authEnc;
+	public WriteAheadLogBlockStore log;    // null if there is no log
 
-	public ServerContext(BlockDevice device, RSAKey privateKey, PRGen prg) 
+	private static final int  CacheBlocks = 4096;
+	private static final long FlushIntervalMillis = 1000;
+	private static final int  TreeArity = 16;
+
+	public ServerContext(BlockStore device, String logFilename, 
+		RSAKey privateKey, PRGen prg) 
+	throws DataIntegrityException, IOException {
+		// Same as below, but puts a write-ahead log (kept in <logFilename>)
+		// in front of <device>.  Whatever the log holds from a previous run 
+		// is replayed into <device> before anything else reads it.
+		this(new WriteAheadLogBlockStore(device, logFilename), privateKey, prg);
+	}
+
+	public ServerContext(BlockStore device, RSAKey privateKey, PRGen prg) 
 	throws DataIntegrityException {
 		this.prg = prg;
 		this.privateKey = privateKey;
 		
-		BlockStoreAuthEnc bsae = new BlockStoreAuthEnc(device, prg);
-		// bsae.format(); // use to initialize BlockStoreAuthEnc during first run
+		if(device instanceof WriteAheadLogBlockStore){
+			log = (WriteAheadLogBlockStore) device;
+		}
+		// the cache sits beneath BlockStoreAuthEnc, so that the tree nodes
+		// and metablocks it rereads on every operation come from memory
+		cache = new CachingBlockStore(device, CacheBlocks);
+		authEnc = new BlockStoreAuthEnc(cache, prg, TreeArity);
+		// authEnc.format(); // use to initialize BlockStoreAuthEnc during first run
 
-		mux = new BlockStoreMultiplexor(bsae);
+		mux = new BlockStoreMultiplexor(authEnc);
 
 		BlockStore bs0;
 		if(mux.numSubStores() == 0){
@@ -39,5 +64,51 @@ public class ServerContext {
 			bs0 = mux.getSubStore(0);
 		}
 		auth = new ServerAuth(bs0, mux);
+		sync();
+		startFlusher();
+	}
+
+	// Bring the Merkle tree up to date (if hashing is deferred), push cached
+	// writes down to the device, and commit the log if there is one.  This
+	// also happens in the background every second.
+	public void sync() throws DataIntegrityException {
+		// each layer pushes its writes down and then syncs the one below
+		authEnc.sync();
+	}
+
+	// Give back the blocks the multiplexor has reserved but not used, then
+	// sync.  Call this when shutting the server down.
+	public void close() throws DataIntegrityException {
+		mux.close();
+		sync();
+	}
+
+	// Start checking every block in the background, at most
+	// <blocksPerSecond> blocks per second.  The returned scrubber reports
+	// progress and any corrupted blocks.
+	public IntegrityScrubber startScrubber(int blocksPerSecond) {
+		IntegrityScrubber scrubber = new IntegrityScrubber(authEnc, 
+			blocksPerSecond);
+		scrubber.start();
+		return scrubber;
+	}
+
+	private void startFlusher() {
+		Thread flusher = new Thread("ServerContext-flusher") {
+			public void run() {
+				while(true){
+					try {
+						Thread.sleep(FlushIntervalMillis);
+						sync();
+					} catch(InterruptedException x) {
+						return;
+					} catch(DataIntegrityException x) {
+						x.printStackTrace();
+					}
+				}
+			}
+		};
+		flusher.setDaemon(true);
+		flusher.start();
 	}
 }
@@ -1,5 +1,13 @@
-
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 
 public class TestBlockDevice {
@@ -8,10 +16,192 @@ public class TestBlockDevice {
 
 		BlockStore bs = new BlockDevice("testDevice");
 		boolean passed = TestBlockStore.test(bs);
+
+		BlockStore cbs = new BlockDevice("testChannelDevice", true);
+		passed = passed && TestBlockStore.test(cbs);
+		passed = passed && testPartialWrites(cbs);
+		passed = passed && TestBlockStore.testByteBuffers(cbs);
+		passed = passed && TestBlockStore.testVectored(bs);
+		passed = passed && TestBlockStore.testVectored(cbs);
+		passed = passed && testSparse("testDevice");
+		passed = passed && testFormat(new BlockDevice("testDevice"));
+		passed = passed && testAsync(new BlockDevice("testChannelDevice", true));
+		passed = passed && testFanout("testFanoutDevice");
+
 		if(passed){
 			System.out.println("OK");
 		}else{
 			System.out.println("FAILED");
 		}
 	}	
-}
\ No newline at end of file
+
+	public static boolean testPartialWrites(BlockStore bs) 
+		throws DataIntegrityException {
+		// partial writes must leave the rest of the block alone, and reads
+		// past what has been written must come back as zeroes
+		bs.format();
+		byte[] wrBlock = TestBlockStore.makeBlock(bs, 5);
+		bs.writeBlock(3, wrBlock, 100, 100, 50);
+		bs.writeBlock(3, wrBlock, 0, 0, 10);
+
+		byte[] rdBlock = new byte[bs.blockSize()];
+		bs.readBlock(3, rdBlock, 0, 0, bs.blockSize());
+		for(int i=0; i<bs.blockSize(); ++i){
+			boolean written = (i<10) || (i>=100 && i<150);
+			if(rdBlock[i] != (written ? wrBlock[i] : 0)){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public static boolean testSparse(String dirname) 
+		throws FileNotFoundException, DataIntegrityException {
+		BlockDevice bd = new BlockDevice(dirname);
+		// reading unwritten blocks must not allocate them, and writing a full
+		// block of zeroes must give its storage back
+		bd.format();
+		byte[] rdBlock = new byte[bd.blockSize()];
+		bd.readBlock(7, rdBlock, 0, 0, bd.blockSize());
+		if(bd.isAllocated(7)){
+			return false;
+		}
+		bd.writeBlock(7, TestBlockStore.makeBlock(bd, 1), 0, 0, bd.blockSize());
+		// the map is persisted, so a fresh handle on the directory agrees
+		if(! new BlockDevice(dirname).isAllocated(7)){
+			return false;
+		}
+		bd.writeBlock(7, new byte[bd.blockSize()], 0, 0, bd.blockSize());
+		bd.readBlock(7, rdBlock, 0, 0, bd.blockSize());
+		for(int i=0; i<bd.blockSize(); ++i){
+			if(rdBlock[i] != 0){
+				return false;
+			}
+		}
+		return ! bd.isAllocated(7);
+	}
+
+	public static boolean testFanout(String dirname) 
+		throws FileNotFoundException, DataIntegrityException {
+		// blocks written under one directory layout must all still be there
+		// after the store is reopened with another one; blocks 10 thru 99
+		// have the names of fan-out directories, so every block up to 299 is
+		// written, plus a few far ones that need the higher levels
+		List<Integer> blockNums = new ArrayList<Integer>();
+		for(int bn=0; bn<300; ++bn){
+			blockNums.add(bn);
+		}
+		blockNums.add(70000);
+		blockNums.add(1<<24);
+		BlockDevice bd = new BlockDevice(dirname, false, 0);
+		bd.format();
+		for(int bn : blockNums){
+			bd.writeBlock(bn, TestBlockStore.makeBlock(bd, bn), 0, 0, bd.blockSize());
+		}
+		for(int levels : new int[] { 2, 1, 3, -1 }){
+			bd = new BlockDevice(dirname, true, levels);
+			if(! checkBlocks(bd, blockNums)){
+				return false;
+			}
+		}
+
+		// a migration that stopped with a file in the staging directory is
+		// finished on the next open
+		File dir = new File(dirname);
+		try {
+			Files.write(new File(dir, "Layout.migrating").toPath(), 
+				"2".getBytes("US-ASCII"));
+			File staging = new File(dir, "OrdinaryBlocks.migrating");
+			staging.mkdir();
+			if(! new File(dir, "OrdinaryBlocks/05/00/00/5").renameTo(
+				new File(staging, "5"))){
+				return false;
+			}
+		} catch(IOException x) {
+			return false;
+		}
+		bd = new BlockDevice(dirname, false, -1);
+		return checkBlocks(bd, blockNums) && 
+			new File(dir, "OrdinaryBlocks/05/00/5").isFile() &&
+			! new File(dir, "Layout.migrating").exists();
+	}
+
+	private static boolean checkBlocks(BlockDevice bd, List<Integer> blockNums) 
+		throws DataIntegrityException {
+		byte[] rdBlock = new byte[bd.blockSize()];
+		for(int bn : blockNums){
+			byte[] checkBlock = TestBlockStore.makeBlock(bd, bn);
+			bd.readBlock(bn, rdBlock, 0, 0, bd.blockSize());
+			for(int i=0; i<bd.blockSize(); ++i){
+				if(rdBlock[i] != checkBlock[i]){
+					return false;
+				}
+			}
+			if(! bd.isAllocated(bn)){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public static boolean testAsync(BlockDevice bd) 
+		throws DataIntegrityException {
+		// many outstanding writes, several of them to the same block; the 
+		// last write submitted to a block must be the one that sticks
+		bd.format();
+		bd.setIoThreads(8);
+		List<CompletableFuture<Void>> futures = 
+			new ArrayList<CompletableFuture<Void>>();
+		for(int round=0; round<4; ++round){
+			for(int bn=0; bn<32; ++bn){
+				byte[] wrBlock = TestBlockStore.makeBlock(bd, bn*4+round);
+				futures.add(bd.writeBlockAsync(bn, wrBlock, 0, 0, bd.blockSize()));
+			}
+		}
+		byte[][] rdBlocks = new byte[32][bd.blockSize()];
+		for(int bn=0; bn<32; ++bn){
+			futures.add(bd.readBlockAsync(bn, rdBlocks[bn], 0, 0, bd.blockSize()));
+		}
+		CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+
+		for(int bn=0; bn<32; ++bn){
+			byte[] checkBlock = TestBlockStore.makeBlock(bd, bn*4+3);
+			for(int i=0; i<bd.blockSize(); ++i){
+				if(rdBlocks[bn][i] != checkBlock[i]){
+					return false;
+				}
+			}
+		}
+
+		// a request that fails (with an AssertionError, under -ea) must not
+		// hold up the next request on its block
+		bd.readBlockAsync(0, rdBlocks[0], 0, -1, 8);
+		try {
+			bd.writeBlockAsync(0, rdBlocks[1], 0, 0, bd.blockSize())
+				.get(10, TimeUnit.SECONDS);
+		} catch(InterruptedException | ExecutionException | TimeoutException x) {
+			return false;
+		}
+		return true;
+	}
+
+	public static boolean testFormat(BlockStore bs) 
+		throws DataIntegrityException {
+		// right after a format, everything reads as zeroes and the store is
+		// immediately usable again
+		for(int bn=0; bn<64; ++bn){
+			bs.writeBlock(bn, TestBlockStore.makeBlock(bs, bn), 0, 0, bs.blockSize());
+		}
+		bs.format();
+		byte[] rdBlock = new byte[bs.blockSize()];
+		for(int bn=0; bn<64; ++bn){
+			bs.readBlock(bn, rdBlock, 0, 0, bs.blockSize());
+			for(int i=0; i<bs.blockSize(); ++i){
+				if(rdBlock[i] != 0){
+					return false;
+				}
+			}
+		}
+		return TestBlockStore.test(bs);
+	}
+}
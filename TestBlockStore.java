@@ -1,4 +1,9 @@
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+
 public class TestBlockStore {
 	public static byte[] makeBlock(BlockStore bs, int salt) {
 		byte[] ret = new byte[bs.blockSize()];
@@ -31,4 +36,75 @@ public class TestBlockStore {
 
 		return true;
 	}
-}
\ No newline at end of file
+
+	public static boolean testByteBuffers(BlockStore bs) 
+		throws DataIntegrityException {
+		// Write blocks through direct buffers, read them back both ways
+		// Return true iff tests are all passed
+		bs.format();
+
+		for(int bn=9; bn>=0; --bn){
+			ByteBuffer wrBuf = ByteBuffer.allocateDirect(bs.blockSize());
+			wrBuf.put(makeBlock(bs, bn));
+			wrBuf.flip();
+			bs.writeBlock(bn, wrBuf, 0);
+			if(wrBuf.hasRemaining()){
+				return false;
+			}
+		}
+
+		for(int bn=9; bn>=0; --bn){
+			byte[] checkBlock = makeBlock(bs, bn);
+			ByteBuffer rdBuf = ByteBuffer.allocateDirect(bs.blockSize()-7);
+			bs.readBlock(bn, rdBuf, 7);
+			byte[] rdBlock = new byte[bs.blockSize()];
+			bs.readBlock(bn, rdBlock, 0, 0, bs.blockSize());
+			for(int i=0; i<bs.blockSize(); ++i){
+				if(rdBlock[i]!=checkBlock[i]) {
+					return false;
+				}
+				if(i>=7 && rdBuf.get(i-7)!=checkBlock[i]) {
+					return false;
+				}
+			}
+		}
+
+		return true;
+	}
+
+	public static boolean testVectored(BlockStore bs) 
+		throws DataIntegrityException {
+		// Write a batch of ranges, some overlapping on the same block, and
+		// read them back in one batch
+		// Return true iff tests are all passed
+		bs.format();
+		int bsize = bs.blockSize();
+		byte[] expected = new byte[6*bsize];
+
+		List<BlockRange> writes = new ArrayList<BlockRange>();
+		for(int bn=5; bn>=0; --bn){
+			byte[] wrBlock = makeBlock(bs, bn);
+			writes.add(new BlockRange(bn, wrBlock, 0, 0, bsize));
+			System.arraycopy(wrBlock, 0, expected, bn*bsize, bsize);
+		}
+		// a later, overlapping partial write to block 2 must win
+		byte[] patch = makeBlock(bs, 99);
+		writes.add(new BlockRange(2, patch, 10, 10, 50));
+		System.arraycopy(patch, 10, expected, 2*bsize+10, 50);
+		bs.writeBlocks(writes);
+
+		byte[] rdBuf = new byte[6*bsize];
+		List<BlockRange> reads = new ArrayList<BlockRange>();
+		for(int bn=0; bn<6; ++bn){
+			reads.add(new BlockRange(bn, rdBuf, bn*bsize, 0, bsize));
+		}
+		bs.readBlocks(reads);
+		for(int i=0; i<rdBuf.length; ++i){
+			if(rdBuf[i]!=expected[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+}
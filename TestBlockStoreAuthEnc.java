@@ -1,5 +1,9 @@
 
 import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 public class TestBlockStoreAuthEnc {
@@ -15,12 +19,363 @@ public class TestBlockStoreAuthEnc {
 			prgSeed[i] = randBytes[i];
 		}
 		PRGen prg = new PRGen(prgSeed);
-		BlockStore bs = new BlockStoreAuthEnc(dev, prg);
+		BlockStoreAuthEnc bs = new BlockStoreAuthEnc(dev, prg);
 		boolean passed = TestBlockStore.test(bs);
+		passed = passed && TestBlockStore.testByteBuffers(bs);
+		passed = passed && TestBlockStore.testVectored(bs);
+		passed = passed && testPartialRanges(bs);
+		passed = passed && testHashCache(bs, dev);
+		passed = passed && testWriteVerification(bs);
+		passed = passed && testDeferredHashing(bs, dev, prg);
+		passed = passed && testDeferredTamper(bs, dev);
+		passed = passed && testArity(bs, dev, prg);
+		passed = passed && testHashOnly(bs, dev, prg);
+		passed = passed && testAllocationBitmap(bs, dev, prg);
+		passed = passed && testConcurrency(bs, dev, prg);
+		passed = passed && testTrim(bs, dev, prg);
 		if(passed){
 			System.out.println("OK");
 		}else{
 			System.out.println("FAILED");
 		}
 	}
-}
\ No newline at end of file
+
+	public static boolean testPartialRanges(BlockStore bs) 
+		throws DataIntegrityException {
+		// ranges that start and end inside a block have to meet up with the
+		// rest of the block's keystream
+		bs.format();
+		byte[] wrBlock = TestBlockStore.makeBlock(bs, 4);
+		byte[] patch = TestBlockStore.makeBlock(bs, 99);
+		bs.writeBlock(6, wrBlock, 0, 0, bs.blockSize());
+		bs.writeBlock(6, patch, 0, 1001, 77);
+		System.arraycopy(patch, 0, wrBlock, 1001, 77);
+
+		int[][] ranges = { {0, bs.blockSize()}, {1000, 80}, {1, 1}, 
+			{bs.blockSize()-33, 33} };
+		for(int[] r : ranges){
+			byte[] rdBlock = new byte[r[1]];
+			bs.readBlock(6, rdBlock, 0, r[0], r[1]);
+			for(int i=0; i<r[1]; ++i){
+				if(rdBlock[i] != wrBlock[r[0]+i]){
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	public static boolean testHashCache(BlockStoreAuthEnc bs, BlockStore dev) 
+		throws DataIntegrityException {
+		// repeated reads should be verified from the cache, and a block
+		// changed behind our back must still be caught
+		bs.format();
+		byte[] wrBlock = TestBlockStore.makeBlock(bs, 9);
+		bs.writeBlock(40, wrBlock, 0, 0, bs.blockSize());
+		bs.resetHashCacheStats();
+		byte[] rdBlock = new byte[bs.blockSize()];
+		bs.readBlock(40, rdBlock, 0, 0, bs.blockSize());
+		if(bs.hashCacheHits() == 0){
+			return false;
+		}
+
+		// node n is device block 2n
+		dev.writeBlock(2*40, new byte[] { 1 }, 0, 17, 1);
+		try {
+			bs.readBlock(40, rdBlock, 0, 0, bs.blockSize());
+		} catch(DataIntegrityException x) {
+			return true;
+		}
+		return false;
+	}
+
+	public static boolean testWriteVerification(BlockStoreAuthEnc bs) 
+		throws DataIntegrityException {
+		// only the writes picked by the policy are read back
+		bs.format();
+		long before = bs.writeVerifications();
+		bs.setWriteVerification(BlockStoreAuthEnc.VERIFY_OFF);
+		bs.writeBlock(3, TestBlockStore.makeBlock(bs, 3), 0, 0, bs.blockSize());
+		if(bs.writeVerifications() != before){
+			return false;
+		}
+		bs.setWriteVerification(2);
+		for(int bn=0; bn<8; ++bn){
+			bs.writeBlock(bn, TestBlockStore.makeBlock(bs, bn), 0, 0, bs.blockSize());
+		}
+		boolean passed = (bs.writeVerifications() == before+4);
+		bs.setWriteVerification(BlockStoreAuthEnc.VERIFY_ALWAYS);
+		return passed && TestBlockStore.test(bs);
+	}
+
+	public static boolean testDeferredHashing(BlockStoreAuthEnc bs, 
+		BlockStore dev, PRGen prg) throws DataIntegrityException {
+		// writes only mark the tree dirty until a flush, and after the flush
+		// a fresh instance must be able to verify everything
+		bs.format();
+		bs.setDeferredHashing(true);
+		for(int bn=20; bn>=0; --bn){
+			bs.writeBlock(bn, TestBlockStore.makeBlock(bs, bn), 0, 0, bs.blockSize());
+		}
+		if(bs.dirtyNodes() == 0){
+			return false;
+		}
+		byte[] rdBlock = new byte[bs.blockSize()];
+		bs.readBlock(20, rdBlock, 0, 0, bs.blockSize());
+		bs.flushHashes();
+		bs.setDeferredHashing(false);
+		if(bs.dirtyNodes() != 0){
+			return false;
+		}
+
+		BlockStoreAuthEnc fresh = new BlockStoreAuthEnc(dev, prg);
+		for(int bn=20; bn>=0; --bn){
+			byte[] checkBlock = TestBlockStore.makeBlock(bs, bn);
+			fresh.readBlock(bn, rdBlock, 0, 0, bs.blockSize());
+			for(int i=0; i<bs.blockSize(); ++i){
+				if(rdBlock[i] != checkBlock[i]){
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	public static boolean testDeferredTamper(BlockStoreAuthEnc bs, 
+		BlockStore dev) throws DataIntegrityException {
+		// a block changed behind the store's back before its hash is flushed
+		// must be caught, by a read and by the flush, and so must a change
+		// to an ancestor that is only dirty because of its children
+		boolean passed = true;
+		byte[] rdBlock = new byte[bs.blockSize()];
+		for(boolean hashOnly : new boolean[] { false, true }){
+			for(int target : new int[] { 10, 1 }){
+				bs.format(BlockStoreAuthEnc.DEFAULT_ARITY, hashOnly);
+				bs.writeBlock(1, TestBlockStore.makeBlock(bs, 1), 0, 0, 
+					bs.blockSize());
+				bs.setDeferredHashing(true);
+				bs.writeBlock(10, TestBlockStore.makeBlock(bs, 10), 0, 0, 
+					bs.blockSize());
+				dev.writeBlock(2*target, new byte[] { 1 }, 0, 17, 1);
+				try {
+					bs.readBlock(target, rdBlock, 0, 0, bs.blockSize());
+					passed = false;
+				} catch(DataIntegrityException x) {
+				}
+				try {
+					bs.flushHashes();
+					passed = false;
+				} catch(DataIntegrityException x) {
+				}
+			}
+		}
+		bs.format(BlockStoreAuthEnc.DEFAULT_ARITY, false);
+		bs.setDeferredHashing(false);
+		return passed;
+	}
+
+	public static boolean testArity(BlockStoreAuthEnc bs, BlockStore dev, 
+		PRGen prg) throws DataIntegrityException {
+		// a wider tree must work the same way, and the arity must stick
+		bs.format(16);
+		boolean passed = TestBlockStore.test(bs);
+		passed = passed && TestBlockStore.testVectored(bs);
+		BlockStoreAuthEnc fresh = new BlockStoreAuthEnc(dev, prg);
+		passed = passed && (fresh.arity() == 16);
+		passed = passed && (fresh.blockSize() == bs.blockSize());
+		byte[] checkBlock = TestBlockStore.makeBlock(bs, 5);
+		byte[] rdBlock = new byte[bs.blockSize()];
+		fresh.readBlock(5, rdBlock, 0, 0, bs.blockSize());
+		for(int i=0; i<bs.blockSize(); ++i){
+			passed = passed && (rdBlock[i] == checkBlock[i]);
+		}
+		bs.format(BlockStoreAuthEnc.DEFAULT_ARITY);
+		return passed;
+	}
+
+	public static boolean testHashOnly(BlockStoreAuthEnc bs, BlockStore dev, 
+		PRGen prg) throws DataIntegrityException {
+		// the hash-only layout must work, stick, and still catch a change to
+		// a block's data
+		bs.format(8, true);
+		boolean passed = TestBlockStore.test(bs);
+		passed = passed && TestBlockStore.testVectored(bs);
+		BlockStoreAuthEnc fresh = new BlockStoreAuthEnc(dev, prg);
+		passed = passed && fresh.hashOnly() && (fresh.arity() == 8);
+
+		bs.writeBlock(12, TestBlockStore.makeBlock(bs, 12), 0, 0, bs.blockSize());
+		fresh = new BlockStoreAuthEnc(dev, prg);
+		dev.writeBlock(2*12, new byte[] { 1 }, 0, 17, 1);
+		try {
+			byte[] rdBlock = new byte[bs.blockSize()];
+			fresh.readBlock(12, rdBlock, 0, 0, bs.blockSize());
+			passed = false;
+		} catch(DataIntegrityException x) {
+		}
+		bs.format(BlockStoreAuthEnc.DEFAULT_ARITY, false);
+		return passed;
+	}
+
+	public static boolean testAllocationBitmap(BlockStoreAuthEnc bs, 
+		BlockStore dev, PRGen prg) throws DataIntegrityException {
+		// unwritten space reads as zeroes, even around a partial write, and
+		// the bitmap can't be changed behind the store's back
+		bs.format();
+		byte[] wrBlock = TestBlockStore.makeBlock(bs, 3);
+		bs.writeBlock(3, wrBlock, 0, 100, 10);
+		byte[] rdBlock = new byte[bs.blockSize()];
+		bs.readBlock(3, rdBlock, 0, 0, bs.blockSize());
+		for(int i=0; i<bs.blockSize(); ++i){
+			if(rdBlock[i] != ((i>=100 && i<110) ? wrBlock[i-100] : 0)){
+				return false;
+			}
+		}
+		bs.readBlock(9, rdBlock, 0, 0, bs.blockSize());
+		for(int i=0; i<bs.blockSize(); ++i){
+			if(rdBlock[i] != 0){
+				return false;
+			}
+		}
+
+		// block 4 is allocated as an ancestor of block 10, but was never
+		// written itself, so it reads as zeroes too, and so does the rest of
+		// it after a partial write
+		bs.writeBlock(10, TestBlockStore.makeBlock(bs, 10), 0, 0, bs.blockSize());
+		for(int pass=0; pass<2; ++pass){
+			bs.readBlock(4, rdBlock, 0, 0, bs.blockSize());
+			for(int i=0; i<bs.blockSize(); ++i){
+				if(rdBlock[i] != ((pass==1 && i>=100 && i<110) ? wrBlock[i] : 0)){
+					return false;
+				}
+			}
+			bs.writeBlock(4, wrBlock, 100, 100, 10);
+		}
+
+		// page 0 of the bitmap is device block 1; mark node 9 allocated
+		dev.writeBlock(1, new byte[] { 2 }, 0, 1, 1);
+		boolean passed = false;
+		try {
+			new BlockStoreAuthEnc(dev, prg);
+		} catch(DataIntegrityException x) {
+			passed = true;
+		}
+		bs.format();
+		return passed;
+	}
+
+	public static boolean testConcurrency(final BlockStoreAuthEnc bs, 
+		BlockStore dev, PRGen prg) throws DataIntegrityException {
+		// threads write their own blocks (some single, some vectored) and
+		// read everyone's; no read may fail its integrity check, each thread
+		// must read back what it wrote, and the tree must verify afterwards
+		final int threads = 4;
+		final int span = 6;
+		final int rounds = 60;
+		final int[][] lastSalt = new int[threads][span];
+		final AtomicBoolean failed = new AtomicBoolean(false);
+		bs.format();
+
+		Thread[] workers = new Thread[threads];
+		for(int t=0; t<threads; ++t){
+			final int me = t;
+			workers[t] = new Thread() {
+				public void run() {
+					Random rand = new Random(me);
+					byte[] rdBlock = new byte[bs.blockSize()];
+					try {
+						for(int r=1; r<=rounds && !failed.get(); ++r){
+							int slot = rand.nextInt(span);
+							int salt = me*1000 + r;
+							if(r % 5 == 0){
+								int other = (slot+1) % span;
+								List<BlockRange> ranges = new ArrayList<BlockRange>();
+								ranges.add(new BlockRange(me+threads*slot, 
+									TestBlockStore.makeBlock(bs, salt), 0, 0, bs.blockSize()));
+								ranges.add(new BlockRange(me+threads*other, 
+									TestBlockStore.makeBlock(bs, salt), 0, 0, bs.blockSize()));
+								bs.writeBlocks(ranges);
+								lastSalt[me][other] = salt;
+							}else{
+								bs.writeBlock(me+threads*slot, 
+									TestBlockStore.makeBlock(bs, salt), 0, 0, bs.blockSize());
+							}
+							lastSalt[me][slot] = salt;
+
+							bs.readBlock(me+threads*slot, rdBlock, 0, 0, bs.blockSize());
+							byte[] checkBlock = TestBlockStore.makeBlock(bs, salt);
+							for(int i=0; i<bs.blockSize(); ++i){
+								if(rdBlock[i] != checkBlock[i]){
+									failed.set(true);
+								}
+							}
+							bs.readBlock(rand.nextInt(threads*span), rdBlock, 0, 0, 
+								bs.blockSize());
+						}
+					} catch(DataIntegrityException x) {
+						x.printStackTrace();
+						failed.set(true);
+					}
+				}
+			};
+			workers[t].start();
+		}
+		for(Thread w : workers){
+			try {
+				w.join();
+			} catch(InterruptedException x) {
+				return false;
+			}
+		}
+		if(failed.get()){
+			return false;
+		}
+
+		BlockStoreAuthEnc fresh = new BlockStoreAuthEnc(dev, prg);
+		byte[] rdBlock = new byte[bs.blockSize()];
+		for(int t=0; t<threads; ++t){
+			for(int slot=0; slot<span; ++slot){
+				fresh.readBlock(t+threads*slot, rdBlock, 0, 0, bs.blockSize());
+				byte[] checkBlock = (lastSalt[t][slot] == 0) ? 
+					new byte[bs.blockSize()] : 
+					TestBlockStore.makeBlock(bs, lastSalt[t][slot]);
+				for(int i=0; i<bs.blockSize(); ++i){
+					if(rdBlock[i] != checkBlock[i]){
+						return false;
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	public static boolean testTrim(BlockStoreAuthEnc bs, BlockStore dev, 
+		PRGen prg) throws DataIntegrityException {
+		// trimming the tail of the tree deepest first releases it; what is
+		// left still verifies, and trimmed blocks read as zeroes and can be
+		// written again
+		bs.format();
+		for(int bn=0; bn<15; ++bn){
+			bs.writeBlock(bn, TestBlockStore.makeBlock(bs, bn), 0, 0, bs.blockSize());
+		}
+		bs.trimBlock(1);           // has children; kept
+		for(int bn=14; bn>=5; --bn){
+			bs.trimBlock(bn);
+		}
+		BlockStoreAuthEnc fresh = new BlockStoreAuthEnc(dev, prg);
+		byte[] rdBlock = new byte[bs.blockSize()];
+		for(int bn=0; bn<15; ++bn){
+			byte[] checkBlock = (bn < 5) ? TestBlockStore.makeBlock(bs, bn) : 
+				new byte[bs.blockSize()];
+			fresh.readBlock(bn, rdBlock, 0, 0, bs.blockSize());
+			for(int i=0; i<bs.blockSize(); ++i){
+				if(rdBlock[i] != checkBlock[i]){
+					return false;
+				}
+			}
+		}
+		byte[] wrBlock = TestBlockStore.makeBlock(bs, 77);
+		bs.writeBlock(9, wrBlock, 0, 0, bs.blockSize());
+		bs.readBlock(9, rdBlock, 0, 0, bs.blockSize());
+		return rdBlock[5] == wrBlock[5];
+	}
+}
@@ -10,11 +10,264 @@ public class TestBlockStoreMultiplexor {
     BlockStoreMultiplexor mux = new BlockStoreMultiplexor(wrappedStore);
     for(int i=0; i<16; ++i){
       BlockStore st = mux.newSubStore();
-      boolean worked = TestBlockStore.test(st);
+      boolean worked = TestBlockStore.test(st) && TestBlockStore.testVectored(st);
       if(! worked){
         System.out.printf("Data failure %d\n", i);
       }
     }
+    if(! testTranslationCache(wrappedStore)){
+      System.out.println("Translation cache failure");
+    }
+    if(! testMigration(wrappedStore)){
+      System.out.println("Migration failure");
+    }
+    if(! testChunkedAllocation(wrappedStore)){
+      System.out.println("Allocation failure");
+    }
+    for(boolean radix : new boolean[] { false, true }){
+      if(! testDeleteAndCompact(wrappedStore, radix)){
+        System.out.printf("Delete/compact failure, radix %b\n", radix);
+      }
+    }
+    // again over a hash tree, whose nodes compact() has to trim, and
+    // which a fresh instance must still verify afterwards
+    byte[] prgSeed = new byte[PRGen.KEY_SIZE_BYTES];
+    byte[] randBytes = TrueRandomness.get();
+    for(int i=0; i<TrueRandomness.NumBytes; ++i){
+      prgSeed[i] = randBytes[i];
+    }
+    PRGen prg = new PRGen(prgSeed);
+    wrappedStore.format();
+    if(! testDeleteAndCompact(new BlockStoreAuthEnc(wrappedStore, prg), true) ||
+      ! check(new BlockStoreMultiplexor(new BlockStoreAuthEnc(wrappedStore, 
+        prg)).getSubStore(0), 30, 0)){
+      System.out.println("Delete/compact failure over BlockStoreAuthEnc");
+    }
+    if(! testExtents(wrappedStore)){
+      System.out.println("Extent failure");
+    }
+    if(! testReopen(wrappedStore)){
+      System.out.println("Reopen failure");
+    }
     System.out.println("Done");
   }	
+
+  private static void fill(BlockStore st, int nblocks, int seed) 
+  throws DataIntegrityException {
+    fill(st, range(nblocks), seed);
+  }
+
+  private static boolean check(BlockStore st, int nblocks, int seed) 
+  throws DataIntegrityException {
+    return check(st, range(nblocks), seed);
+  }
+
+  private static int[] range(int nblocks) {
+    int[] blocks = new int[nblocks];
+    for(int b=0; b<nblocks; ++b){
+      blocks[b] = b;
+    }
+    return blocks;
+  }
+
+  // Same, for just the listed blocks.
+  private static void fill(BlockStore st, int[] blocks, int seed) 
+  throws DataIntegrityException {
+    for(int b : blocks){
+      st.writeBlock(b, TestBlockStore.makeBlock(st, seed+b), 0, 0, 
+        st.blockSize());
+    }
+  }
+
+  private static boolean check(BlockStore st, int[] blocks, int seed) 
+  throws DataIntegrityException {
+    byte[] rdBlock = new byte[st.blockSize()];
+    for(int b : blocks){
+      byte[] checkBlock = TestBlockStore.makeBlock(st, seed+b);
+      st.readBlock(b, rdBlock, 0, 0, st.blockSize());
+      for(int j=0; j<st.blockSize(); ++j){
+        if(rdBlock[j] != checkBlock[j]){
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  // Delete a store and check that its blocks are reused before the store
+  // grows, then delete another, compact, and check that the store shrank
+  // and the survivors read back through a new multiplexor.
+  public static boolean testDeleteAndCompact(BlockStore wrappedStore, 
+    boolean radix) throws DataIntegrityException {
+    wrappedStore.format();
+    BlockStoreMultiplexor mux = new BlockStoreMultiplexor(wrappedStore, radix);
+    mux.setAllocationChunk(1);
+    for(int i=0; i<3; ++i){
+      fill(mux.newSubStore(), 30, 100*i);
+    }
+
+    mux.deleteSubStore(1);
+    try {
+      mux.getSubStore(1).readBlock(0, new byte[1], 0, 0, 1);
+      return false;
+    } catch(IllegalStateException x) {
+      // expected
+    }
+    // the new store's master block plus its map fit in what was freed
+    int mark = mux.highWaterMark();
+    BlockStore st = mux.newSubStore();
+    fill(st, 29, 300);
+    if(mux.highWaterMark() != mark || ! check(mux.getSubStore(0), 30, 0)){
+      return false;
+    }
+
+    mux.deleteSubStore(2);
+    mux.compact();
+    if(mux.highWaterMark() >= mark){
+      return false;
+    }
+
+    mux = new BlockStoreMultiplexor(wrappedStore);
+    return mux.isSubStoreDeleted(1) && mux.isSubStoreDeleted(2) && 
+      check(mux.getSubStore(0), 30, 0) && check(mux.getSubStore(3), 29, 300);
+  }
+
+  // Grow two stores in lockstep and check that each one's blocks still
+  // land in a few long runs of the wrapped store, and read back.
+  public static boolean testExtents(BlockStore wrappedStore) 
+  throws DataIntegrityException {
+    wrappedStore.format();
+    BlockStoreMultiplexor mux = new BlockStoreMultiplexor(wrappedStore, true);
+    BlockStore[] st = { mux.newSubStore(), mux.newSubStore() };
+    for(int b=0; b<100; ++b){
+      for(int i=0; i<st.length; ++i){
+        st[i].writeBlock(b, TestBlockStore.makeBlock(st[i], 100*i+b), 0, 0, 
+          st[i].blockSize());
+      }
+    }
+    for(int i=0; i<st.length; ++i){
+      BlockStoreMultiplexor.Multiplexed m = 
+        (BlockStoreMultiplexor.Multiplexed) st[i];
+      int breaks = 0;
+      for(int b=1; b<100; ++b){
+        if(m.physicalBlockNum(b) != m.physicalBlockNum(b-1)+1){
+          ++breaks;
+        }
+      }
+      // one per extent (4, 8, ..., 64), and one for the index block
+      if(breaks > 6 || ! check(st[i], 100, 100*i)){
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Abandon a multiplexor part way through a chunk, as a crash would, and
+  // check that a new one allocates past everything the old one used.
+  public static boolean testChunkedAllocation(BlockStore wrappedStore) 
+  throws DataIntegrityException {
+    wrappedStore.format();
+    BlockStoreMultiplexor mux = new BlockStoreMultiplexor(wrappedStore);
+    mux.setAllocationChunk(16);
+    fill(mux.newSubStore(), 40, 0);
+
+    mux = new BlockStoreMultiplexor(wrappedStore);
+    mux.setAllocationChunk(16);
+    fill(mux.newSubStore(), 40, 100);
+
+    mux = new BlockStoreMultiplexor(wrappedStore);
+    for(int i=0; i<2; ++i){
+      if(! check(mux.getSubStore(i), 40, 100*i)){
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Fill two stores in the old pointer-chain format, upgrade, and check
+  // that everything reads back, including blocks written after the index
+  // has had to grow a level.
+  public static boolean testMigration(BlockStore wrappedStore) 
+  throws DataIntegrityException {
+    wrappedStore.format();
+    BlockStoreMultiplexor mux = new BlockStoreMultiplexor(wrappedStore, false);
+    int[] blocks = { 0, 1, 2, 5, 17, 40, 41, 63 };
+    for(int i=0; i<2; ++i){
+      fill(mux.newSubStore(), blocks, 100*i);
+    }
+    mux.upgradeFormat();
+
+    BlockStoreMultiplexor upgraded = new BlockStoreMultiplexor(wrappedStore);
+    upgraded.setTranslationCacheEntries(0);
+    BlockStore st = upgraded.getSubStore(1);
+    int[] far = { 1000 };
+    fill(st, far, 0);
+    for(int i=0; i<2; ++i){
+      if(! check(upgraded.getSubStore(i), blocks, 100*i)){
+        return false;
+      }
+    }
+    return check(st, far, 0);
+  }
+
+  // Write through a multiplexor with a translation cache smaller than each
+  // store (so entries get replaced, but reading a store back after filling
+  // it still finds most of them), then read back through one with no
+  // cache at all.
+  public static boolean testTranslationCache(BlockStore wrappedStore) 
+  throws DataIntegrityException {
+    wrappedStore.format();
+    BlockStoreMultiplexor mux = new BlockStoreMultiplexor(wrappedStore);
+    mux.setTranslationCacheEntries(32);
+    for(int i=0; i<3; ++i){
+      mux.newSubStore();
+    }
+    for(int pass=0; pass<2; ++pass){
+      for(int i=0; i<3; ++i){
+        BlockStore st = mux.getSubStore(i);
+        fill(st, 40, 100*i+pass);
+        if(! check(st, 40, 100*i+pass)){
+          return false;
+        }
+      }
+    }
+    if(mux.translationHits() == 0){
+      return false;
+    }
+
+    BlockStoreMultiplexor uncached = new BlockStoreMultiplexor(wrappedStore);
+    uncached.setTranslationCacheEntries(0);
+    for(int i=0; i<3; ++i){
+      if(! check(uncached.getSubStore(i), 40, 100*i+1)){
+        return false;
+      }
+    }
+    return uncached.translationHits() == 0;
+  }
+
+  // Reopen the multiplexor a few times, growing each store a little in
+  // between, and check that closing it gives back what it had reserved:
+  // the high-water mark must not move.
+  public static boolean testReopen(BlockStore wrappedStore) 
+  throws DataIntegrityException {
+    wrappedStore.format();
+    BlockStoreMultiplexor mux = new BlockStoreMultiplexor(wrappedStore, true);
+    fill(mux.newSubStore(), 30, 0);
+    fill(mux.newSubStore(), 30, 100);
+    mux.close();
+    int mark = mux.highWaterMark();
+    for(int round=1; round<=3; ++round){
+      mux = new BlockStoreMultiplexor(wrappedStore);
+      for(int i=0; i<2; ++i){
+        fill(mux.getSubStore(i), 30+round, 100*i);
+      }
+      mux.close();
+      if(mux.highWaterMark() != mark){
+        return false;
+      }
+    }
+    mux = new BlockStoreMultiplexor(wrappedStore);
+    return mux.highWaterMark() == mark && 
+      check(mux.getSubStore(0), 33, 0) && check(mux.getSubStore(1), 33, 100);
+  }
 }
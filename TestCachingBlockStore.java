@@ -0,0 +1,141 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import java.io.FileNotFoundException;
+
+
+public class TestCachingBlockStore {
+	public static void main(String[] args) 
+		throws FileNotFoundException, DataIntegrityException {
+
+		// small caches, so that the tests evict (and write back) a lot
+		BlockDevice dev = new BlockDevice("testDevice");
+		CachingBlockStore clock = new CachingBlockStore(dev, 8);
+		boolean passed = TestBlockStore.test(clock);
+		passed = passed && TestBlockStore.testVectored(clock);
+
+		CachingBlockStore lru = new CachingBlockStore(dev, 8, 
+			new CachingBlockStore.LruPolicy());
+		passed = passed && TestBlockStore.test(lru);
+
+		// nothing reaches the device until a flush or an eviction
+		byte[] wrBlock = TestBlockStore.makeBlock(lru, 77);
+		byte[] rdBlock = new byte[lru.blockSize()];
+		lru.writeBlock(3, wrBlock, 0, 0, lru.blockSize());
+		dev.readBlock(3, rdBlock, 0, 0, dev.blockSize());
+		if(rdBlock[1] == wrBlock[1]){
+			passed = false;
+		}
+		lru.flush();
+		dev.readBlock(3, rdBlock, 0, 0, dev.blockSize());
+		for(int i=0; i<dev.blockSize(); ++i){
+			if(rdBlock[i] != wrBlock[i]){
+				passed = false;
+			}
+		}
+		if(lru.hits() == 0 || lru.misses() == 0 || lru.evictions() == 0){
+			passed = false;
+		}
+
+		passed = passed && testTrim(dev);
+		passed = passed && testEvictionOrder();
+		passed = passed && testConcurrency(dev);
+
+		if(passed){
+			System.out.println("OK");
+		}else{
+			System.out.println("FAILED");
+		}
+	}	
+
+	// A trimmed block's slot is reused without evicting anything.
+	public static boolean testTrim(BlockStore dev) throws DataIntegrityException {
+		CachingBlockStore cbs = new CachingBlockStore(dev, 4);
+		byte[] rdBlock = new byte[cbs.blockSize()];
+		for(int bn=0; bn<4; ++bn){
+			cbs.readBlock(bn, rdBlock, 0, 0, cbs.blockSize());
+		}
+		cbs.trimBlock(0);
+		cbs.readBlock(4, rdBlock, 0, 0, cbs.blockSize());
+		return cbs.evictions() == 0;
+	}
+
+	// Evicting a dirty block writes every dirty block, and only then the
+	// superblock, just as flush() does.
+	public static boolean testEvictionOrder() 
+		throws FileNotFoundException, DataIntegrityException {
+
+		final List<Integer> order = new ArrayList<Integer>();   // -1: superblock
+		BlockDevice dev = new BlockDevice("testDevice") {
+			public void writeBlock(int blockNum, byte[] buf, int bufOffset, 
+				int blockOffset, int nbytes) {
+				order.add(blockNum);
+				super.writeBlock(blockNum, buf, bufOffset, blockOffset, nbytes);
+			}
+
+			public void writeSuperBlock(byte[] buf, int bufOffset, 
+				int blockOffset, int nbytes) {
+				order.add(-1);
+				super.writeSuperBlock(buf, bufOffset, blockOffset, nbytes);
+			}
+		};
+		dev.format();
+		order.clear();
+		CachingBlockStore cbs = new CachingBlockStore(dev, 2);
+		byte[] wrBlock = TestBlockStore.makeBlock(cbs, 5);
+		cbs.writeSuperBlock(wrBlock, 0, 0, cbs.superBlockSize());
+		cbs.writeBlock(0, wrBlock, 0, 0, cbs.blockSize());
+		cbs.writeBlock(1, wrBlock, 0, 0, cbs.blockSize());
+		cbs.readBlock(2, new byte[cbs.blockSize()], 0, 0, cbs.blockSize());
+		return order.size() == 3 && order.contains(0) && order.contains(1) &&
+			order.get(2) == -1 && cbs.writeBacks() == 2;
+	}
+
+	// Threads working on their own blocks through a cache too small for
+	// all of them, so that loads and flushes overlap.
+	public static boolean testConcurrency(BlockStore dev) 
+		throws DataIntegrityException {
+
+		dev.format();
+		final CachingBlockStore cbs = new CachingBlockStore(dev, 8);
+		final AtomicBoolean failed = new AtomicBoolean(false);
+		Thread[] threads = new Thread[4];
+		for(int t=0; t<threads.length; ++t){
+			final int base = t*16;
+			threads[t] = new Thread() {
+				public void run() {
+					byte[] rdBlock = new byte[cbs.blockSize()];
+					try {
+						for(int round=0; round<4; ++round){
+							for(int bn=base; bn<base+16; ++bn){
+								byte[] wrBlock = TestBlockStore.makeBlock(cbs, bn*4+round);
+								cbs.writeBlock(bn, wrBlock, 0, 0, cbs.blockSize());
+							}
+							for(int bn=base; bn<base+16; ++bn){
+								byte[] checkBlock = TestBlockStore.makeBlock(cbs, bn*4+round);
+								cbs.readBlock(bn, rdBlock, 0, 0, cbs.blockSize());
+								for(int i=0; i<cbs.blockSize(); ++i){
+									if(rdBlock[i] != checkBlock[i]){
+										failed.set(true);
+									}
+								}
+							}
+						}
+					} catch(DataIntegrityException x) {
+						failed.set(true);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for(Thread t : threads){
+			try {
+				t.join();
+			} catch(InterruptedException x) {
+				return false;
+			}
+		}
+		return ! failed.get();
+	}
+}
@@ -0,0 +1,49 @@
+import java.io.FileNotFoundException;
+import java.util.Arrays;
+import java.util.List;
+
+
+public class TestIntegrityScrubber {
+	public static void main(String[] args) 
+		throws FileNotFoundException, DataIntegrityException {
+
+		BlockStore dev = new BlockDevice("testDevice");
+		dev.format();
+		PRGen prg = new PRGen(new byte[PRGen.KEY_SIZE_BYTES]);
+		BlockStoreAuthEnc bs = new BlockStoreAuthEnc(dev, prg);
+
+		boolean passed = test(bs, dev, 2, false);
+		passed = passed && test(bs, dev, 8, false);
+		passed = passed && test(bs, dev, 8, true);
+		bs.format(BlockStoreAuthEnc.DEFAULT_ARITY, false);
+
+		if(passed){
+			System.out.println("OK");
+		}else{
+			System.out.println("FAILED");
+		}
+	}
+
+	public static boolean test(BlockStoreAuthEnc bs, BlockStore dev, int arity,
+		boolean hashOnly) throws DataIntegrityException {
+		// a clean store scrubs clean, and after two blocks are damaged
+		// behind the store's back exactly those two are reported
+		bs.format(arity, hashOnly);
+		for(int bn=0; bn<100; ++bn){
+			bs.writeBlock(bn, TestBlockStore.makeBlock(bs, bn), 0, 0, bs.blockSize());
+		}
+		IntegrityScrubber scrubber = new IntegrityScrubber(bs, 0);
+		scrubber.run();
+		if(!scrubber.corruptedBlocks().isEmpty() || scrubber.blocksScanned() != 100){
+			return false;
+		}
+
+		// node n is device block 2n
+		dev.writeBlock(2*37, new byte[] { 1 }, 0, 5, 1);
+		dev.writeBlock(2*80, new byte[] { 1 }, 0, 9, 1);
+		scrubber = new IntegrityScrubber(bs, 0);
+		scrubber.run();
+		List<Integer> corrupted = scrubber.corruptedBlocks();
+		return scrubber.isDone() && corrupted.equals(Arrays.asList(37, 80));
+	}
+}
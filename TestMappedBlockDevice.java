@@ -0,0 +1,74 @@
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import java.io.IOException;
+
+
+public class TestMappedBlockDevice {
+	public static void main(String[] args) 
+		throws IOException, DataIntegrityException {
+
+		BlockStore bs = new MappedBlockDevice("testMappedDevice");
+		boolean passed = TestBlockStore.test(bs);
+		passed = passed && TestBlockStore.testByteBuffers(bs);
+
+		// blocks far apart force the mapping to grow across segments
+		byte[] wrBlock = TestBlockStore.makeBlock(bs, 11);
+		byte[] rdBlock = new byte[bs.blockSize()];
+		bs.writeBlock(5000, wrBlock, 0, 0, bs.blockSize());
+		bs.readBlock(5000, rdBlock, 0, 0, bs.blockSize());
+		for(int i=0; i<bs.blockSize(); ++i){
+			if(rdBlock[i] != wrBlock[i]){
+				passed = false;
+			}
+		}
+		bs.readBlock(9000, rdBlock, 0, 0, bs.blockSize());
+		for(int i=0; i<bs.blockSize(); ++i){
+			if(rdBlock[i] != 0){
+				passed = false;
+			}
+		}
+
+		bs.sync();
+		passed = passed && testFormatWhileReading(bs);
+
+		if(passed){
+			System.out.println("OK");
+		}else{
+			System.out.println("FAILED");
+		}
+	}	
+
+	// Read past the first segment from another thread while the device is
+	// formatted and refilled, which used to fault on truncated pages.
+	private static boolean testFormatWhileReading(final BlockStore bs) 
+		throws DataIntegrityException {
+
+		final AtomicBoolean failed = new AtomicBoolean(false);
+		final AtomicBoolean stop = new AtomicBoolean(false);
+		Thread reader = new Thread() {
+			public void run() {
+				byte[] rdBlock = new byte[bs.blockSize()];
+				try {
+					while(! stop.get()){
+						bs.readBlock(5000, rdBlock, 0, 0, bs.blockSize());
+					}
+				} catch(Exception x) {
+					failed.set(true);
+				}
+			}
+		};
+		reader.start();
+		byte[] wrBlock = TestBlockStore.makeBlock(bs, 12);
+		for(int i=0; i<50; ++i){
+			bs.format();
+			bs.writeBlock(5000, wrBlock, 0, 0, bs.blockSize());
+		}
+		stop.set(true);
+		try {
+			reader.join();
+		} catch(InterruptedException x) {
+			return false;
+		}
+		return ! failed.get();
+	}
+}
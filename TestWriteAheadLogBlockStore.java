@@ -0,0 +1,69 @@
+import java.io.File;
+
+import java.io.IOException;
+
+
+public class TestWriteAheadLogBlockStore {
+	public static void main(String[] args) 
+		throws IOException, DataIntegrityException {
+
+		BlockDevice dev = new BlockDevice("testDevice");
+		WriteAheadLogBlockStore wal = new WriteAheadLogBlockStore(dev, 
+			"testDeviceLog");
+		wal.setCheckpointBlocks(16);   // force several checkpoints
+		boolean passed = TestBlockStore.test(wal);
+
+		// committed writes survive a "crash" before the checkpoint,
+		// uncommitted ones don't
+		wal.checkpoint();
+		byte[] committed = TestBlockStore.makeBlock(wal, 3);
+		byte[] lost = TestBlockStore.makeBlock(wal, 4);
+		wal.writeBlock(60, committed, 0, 0, wal.blockSize());
+		wal.commit();
+		wal.writeBlock(61, lost, 0, 0, wal.blockSize());
+
+		BlockStore reopened = new WriteAheadLogBlockStore(
+			new BlockDevice("testDevice"), "testDeviceLog");
+		byte[] rdBlock = new byte[reopened.blockSize()];
+		reopened.readBlock(60, rdBlock, 0, 0, reopened.blockSize());
+		for(int i=0; i<reopened.blockSize(); ++i){
+			if(rdBlock[i] != committed[i]){
+				passed = false;
+			}
+		}
+		reopened.readBlock(61, rdBlock, 0, 0, reopened.blockSize());
+		for(int i=0; i<reopened.blockSize(); ++i){
+			if(rdBlock[i] != 0){
+				passed = false;
+			}
+		}
+
+		passed = passed && testSyncBeforeTruncate();
+
+		if(passed){
+			System.out.println("OK");
+		}else{
+			System.out.println("FAILED");
+		}
+	}	
+
+	// A checkpoint must sync the wrapped store while the log still holds
+	// the writes being checkpointed.
+	private static boolean testSyncBeforeTruncate() 
+		throws IOException, DataIntegrityException {
+
+		final long[] logLengthAtSync = { -1 };
+		BlockDevice dev = new BlockDevice("testDevice") {
+			public void sync() {
+				super.sync();
+				logLengthAtSync[0] = new File("testDeviceLog").length();
+			}
+		};
+		WriteAheadLogBlockStore wal = new WriteAheadLogBlockStore(dev, 
+			"testDeviceLog");
+		wal.writeBlock(62, TestBlockStore.makeBlock(wal, 5), 0, 0, 
+			wal.blockSize());
+		wal.checkpoint();
+		return logLengthAtSync[0] > 0 && new File("testDeviceLog").length() == 0;
+	}
+}
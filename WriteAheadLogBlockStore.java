@@ -0,0 +1,324 @@
+// This class is a BlockStore wrapper that puts an append-only write-ahead
+// log in front of another BlockStore.  Writes are not sent to the wrapped
+// store right away.  Instead they are appended to the log, which is a
+// plain file, and remembered in memory so that reads see them.
+//
+// Log records are collected into a batch, and a whole batch is committed
+// with one write to the end of the log followed by a single fsync.  The
+// batch is committed when it grows past a size threshold, or when commit()
+// is called.  Writes are durable once the batch holding them is committed.
+//
+// The wrapped store is only updated at a checkpoint, which happens when
+// enough distinct blocks have been written, or when checkpoint() is called.
+// A checkpoint writes the latest image of every block that was touched,
+// once, to its home location, and then empties the log.  So any number of
+// small scattered writes to a block turn into sequential log appends plus
+// one write of the block.
+//
+// When the store is opened, every committed batch found in the log is
+// replayed into the wrapped store.  A batch that was only partially written
+// (because of a crash) fails its checksum and is discarded, along with
+// anything after it.
+//
+// The log is only emptied after the wrapped store has been synced, both at
+// a checkpoint and after replay, so a crash right after emptying it can't
+// lose writes that were committed.  sync() is the same as commit().
+//
+// Log record layout (all ints big-endian):
+//   type(1) a(4) b(4) c(4) data(...)
+//   block write:  RecBlock,  blockNum, blockOffset, nbytes, data
+//   sb write:     RecSuper,  0,        blockOffset, nbytes, data
+//   commit:       RecCommit, nrecords, crc32,       payloadBytes
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+
+public class WriteAheadLogBlockStore implements BlockStore {
+	private static final byte RecBlock = 1;
+	private static final byte RecSuper = 2;
+	private static final byte RecCommit = 3;
+	private static final int  RecHeaderSize = 13;
+
+	private static final int DefaultGroupCommitBytes = 256*1024;
+	private static final int DefaultCheckpointBlocks = 1024;
+
+	private BlockStore  wrappedStore;
+	private String      logFilename;
+	private FileChannel log;
+	private long        logEnd;
+
+	private int groupCommitBytes = DefaultGroupCommitBytes;
+	private int checkpointBlocks = DefaultCheckpointBlocks;
+
+	// the batch that hasn't been committed yet
+	private ByteArrayOutputStream pendingBytes = new ByteArrayOutputStream();
+	private DataOutputStream      pending = new DataOutputStream(pendingBytes);
+	private int                   pendingRecords = 0;
+
+	// latest contents of every block (and the superblock) that has been
+	// written since the last checkpoint
+	private HashMap<Integer, byte[]> overlay = new HashMap<Integer, byte[]>();
+	private byte[]                   superOverlay = null;
+
+	public WriteAheadLogBlockStore(BlockStore ws, String logFilename)
+		throws IOException, DataIntegrityException {
+		// Wrap <ws>, keeping the log in the file <logFilename>.  If the log
+		// already holds committed batches, they are replayed into <ws>.
+		wrappedStore = ws;
+		this.logFilename = logFilename;
+		replay();
+		wrappedStore.sync();
+		log = FileChannel.open(new File(logFilename).toPath(),
+			StandardOpenOption.READ, StandardOpenOption.WRITE,
+			StandardOpenOption.CREATE);
+		log.truncate(0);
+		logEnd = 0;
+	}
+
+	// Commit the current batch once it holds at least <nbytes> of records.
+	public synchronized void setGroupCommitBytes(int nbytes) {
+		groupCommitBytes = nbytes;
+	}
+
+	// Checkpoint once at least <nblocks> distinct blocks have been written.
+	public synchronized void setCheckpointBlocks(int nblocks) {
+		checkpointBlocks = nblocks;
+	}
+
+	public synchronized void format() throws DataIntegrityException {
+		pendingBytes.reset();
+		pendingRecords = 0;
+		overlay.clear();
+		superOverlay = null;
+		try {
+			log.truncate(0);
+			logEnd = 0;
+		} catch(IOException x) {
+			x.printStackTrace();
+		}
+		wrappedStore.format();
+	}
+
+	public int blockSize() {
+		return wrappedStore.blockSize();
+	}
+
+	public int superBlockSize() {
+		return wrappedStore.superBlockSize();
+	}
+
+	public synchronized void writeBlock(int blockNum, byte[] buf, int bufOffset,
+		int blockOffset, int nbytes) throws DataIntegrityException {
+
+		if( (blockNum<0) || (blockOffset<0) || (blockOffset+nbytes > blockSize()) ){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+		byte[] image = overlay.get(blockNum);
+		if(image == null){
+			image = new byte[blockSize()];
+			if( (blockOffset != 0) || (nbytes != blockSize()) ){
+				wrappedStore.readBlock(blockNum, image, 0, 0, blockSize());
+			}
+			overlay.put(blockNum, image);
+		}
+		System.arraycopy(buf, bufOffset, image, blockOffset, nbytes);
+		appendRecord(RecBlock, blockNum, blockOffset, buf, bufOffset, nbytes);
+		afterWrite();
+	}
+
+	public synchronized void readBlock(int blockNum, byte[] buf, int bufOffset,
+		int blockOffset, int nbytes) throws DataIntegrityException {
+
+		byte[] image = overlay.get(blockNum);
+		if(image == null){
+			wrappedStore.readBlock(blockNum, buf, bufOffset, blockOffset, nbytes);
+			return;
+		}
+		if( (blockOffset<0) || (blockOffset+nbytes > blockSize()) ){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+		System.arraycopy(image, blockOffset, buf, bufOffset, nbytes);
+	}
+
+	public synchronized void writeSuperBlock(byte[] buf, int bufOffset,
+		int blockOffset, int nbytes) throws DataIntegrityException {
+
+		if( (blockOffset<0) || (blockOffset+nbytes > superBlockSize()) ){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+		if(superOverlay == null){
+			superOverlay = new byte[superBlockSize()];
+			wrappedStore.readSuperBlock(superOverlay, 0, 0, superBlockSize());
+		}
+		System.arraycopy(buf, bufOffset, superOverlay, blockOffset, nbytes);
+		appendRecord(RecSuper, 0, blockOffset, buf, bufOffset, nbytes);
+		afterWrite();
+	}
+
+	public synchronized void readSuperBlock(byte[] buf, int bufOffset,
+		int blockOffset, int nbytes) throws DataIntegrityException {
+
+		if(superOverlay == null){
+			wrappedStore.readSuperBlock(buf, bufOffset, blockOffset, nbytes);
+			return;
+		}
+		if( (blockOffset<0) || (blockOffset+nbytes > superBlockSize()) ){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+		System.arraycopy(superOverlay, blockOffset, buf, bufOffset, nbytes);
+	}
+
+	// Make every write so far durable: append the current batch to the log
+	// and fsync it.
+	public synchronized void commit() {
+		if(pendingRecords == 0){
+			return;
+		}
+		byte[] payload = pendingBytes.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(payload, 0, payload.length);
+
+		ByteBuffer bb = ByteBuffer.allocate(payload.length + RecHeaderSize);
+		bb.put(payload);
+		bb.put(RecCommit);
+		bb.putInt(pendingRecords);
+		bb.putInt((int) crc.getValue());
+		bb.putInt(payload.length);
+		bb.flip();
+		try {
+			while(bb.hasRemaining()){
+				logEnd += log.write(bb, logEnd);
+			}
+			log.force(false);
+		} catch(IOException x) {
+			x.printStackTrace();
+		}
+		pendingBytes.reset();
+		pendingRecords = 0;
+	}
+
+	public void sync() {
+		commit();
+	}
+
+	// Commit, then write every block touched since the last checkpoint to
+	// the wrapped store, sync it, and empty the log.
+	public synchronized void checkpoint() throws DataIntegrityException {
+		commit();
+		for(Map.Entry<Integer, byte[]> e : overlay.entrySet()){
+			wrappedStore.writeBlock(e.getKey(), e.getValue(), 0, 0, blockSize());
+		}
+		if(superOverlay != null){
+			wrappedStore.writeSuperBlock(superOverlay, 0, 0, superBlockSize());
+		}
+		overlay.clear();
+		superOverlay = null;
+		wrappedStore.sync();
+		try {
+			log.truncate(0);
+			logEnd = 0;
+		} catch(IOException x) {
+			x.printStackTrace();
+		}
+	}
+
+	private void appendRecord(byte type, int a, int blockOffset, byte[] buf,
+		int bufOffset, int nbytes) {
+
+		try {
+			pending.writeByte(type);
+			pending.writeInt(a);
+			pending.writeInt(blockOffset);
+			pending.writeInt(nbytes);
+			pending.write(buf, bufOffset, nbytes);
+		} catch(IOException x) {
+			// can't happen when writing to a byte array
+			x.printStackTrace();
+		}
+		++pendingRecords;
+	}
+
+	private void afterWrite() throws DataIntegrityException {
+		if(overlay.size() >= checkpointBlocks){
+			checkpoint();
+		}else if(pendingBytes.size() >= groupCommitBytes){
+			commit();
+		}
+	}
+
+	// Apply every complete, committed batch in the log to the wrapped store.
+	private void replay() throws IOException, DataIntegrityException {
+		File f = new File(logFilename);
+		if(! f.exists()){
+			return;
+		}
+		DataInputStream in = new DataInputStream(
+			new BufferedInputStream(new FileInputStream(f)));
+		List<byte[]> batch = new ArrayList<byte[]>();
+		List<int[]>  headers = new ArrayList<int[]>();
+		CRC32 crc = new CRC32();
+		int payloadBytes = 0;
+		try {
+			while(true){
+				byte type = in.readByte();
+				int a = in.readInt();
+				int b = in.readInt();
+				int c = in.readInt();
+				if(type == RecCommit){
+					if( (a != batch.size()) || (b != (int) crc.getValue()) ||
+						(c != payloadBytes) ){
+						break;     // torn batch; nothing after it is usable
+					}
+					for(int i=0; i<batch.size(); ++i){
+						int[] h = headers.get(i);
+						byte[] data = batch.get(i);
+						if(h[0] == RecBlock){
+							wrappedStore.writeBlock(h[1], data, 0, h[2], data.length);
+						}else{
+							wrappedStore.writeSuperBlock(data, 0, h[2], data.length);
+						}
+					}
+					batch.clear();
+					headers.clear();
+					crc.reset();
+					payloadBytes = 0;
+				}else if( (type == RecBlock) || (type == RecSuper) ){
+					if( (c < 0) || (c > Math.max(blockSize(), superBlockSize())) ){
+						break;
+					}
+					byte[] data = new byte[c];
+					in.readFully(data);
+					byte[] header = new byte[RecHeaderSize];
+					ByteBuffer.wrap(header).put(type).putInt(a).putInt(b).putInt(c);
+					crc.update(header, 0, header.length);
+					crc.update(data, 0, data.length);
+					payloadBytes += header.length + data.length;
+					headers.add(new int[] { type, a, b });
+					batch.add(data);
+				}else{
+					break;
+				}
+			}
+		} catch(EOFException x) {
+			// end of log; an uncommitted batch at the end is dropped
+		} finally {
+			in.close();
+		}
+	}
+}